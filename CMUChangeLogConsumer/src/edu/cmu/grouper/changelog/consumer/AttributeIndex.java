@@ -0,0 +1,393 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.GroupFinder;
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.Stem;
+import edu.internet2.middleware.grouper.StemFinder;
+import edu.internet2.middleware.grouper.attr.assign.AttributeAssign;
+import edu.internet2.middleware.grouper.attr.finder.AttributeAssignFinder;
+import edu.internet2.middleware.grouper.attr.value.AttributeAssignValue;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
+import edu.internet2.middleware.grouper.misc.GrouperDAOFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * In-memory index of every group and stem that has one attribute (the sync
+ * or allowLargeGroups attribute) assigned. Names are stored in a trie of
+ * stem path segments, so checking a group is a walk down its path with no
+ * database access. The index is loaded with bulk queries and kept current
+ * from the change log.
+ */
+public class AttributeIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	// Ids per bulk query
+	private static final int BATCH_SIZE = 100;
+
+	private final String attributeDefNameId;
+	private final Node root = new Node(null, "");
+	private final Map<String, Assignment> assignments = new HashMap<String, Assignment>();
+	private long loadedAt = 0;
+
+
+	public AttributeIndex(String attributeDefNameId) {
+		this.attributeDefNameId = attributeDefNameId;
+	}
+
+	public String getAttributeDefNameId() {
+		return attributeDefNameId;
+	}
+
+	public synchronized long getLoadedAt() {
+		return loadedAt;
+	}
+
+	public synchronized int size() {
+		return assignments.size();
+	}
+
+	/**
+	 * Load every enabled group and stem assignment of the attribute, with
+	 * their values and owner names, replacing what was indexed before.
+	 */
+	public synchronized void load(GrouperSession gs) {
+		long start = System.currentTimeMillis();
+		Set<String> attributeDefNameIds = Collections.singleton(attributeDefNameId);
+
+		Set<AttributeAssign> found = new HashSet<AttributeAssign>();
+		found.addAll(GrouperDAOFactory.getFactory().getAttributeAssign().findGroupAttributeAssignments(
+				null, null, attributeDefNameIds, null, null, true, false));
+		found.addAll(GrouperDAOFactory.getFactory().getAttributeAssign().findStemAttributeAssignments(
+				null, null, attributeDefNameIds, null, null, true, false));
+
+		// Owner names and values, a batch of ids at a time
+		Map<String, String> groupNames = new HashMap<String, String>();
+		Map<String, String> stemNames = new HashMap<String, String>();
+		Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+		List<String> groupIds = new ArrayList<String>();
+		List<String> stemIds = new ArrayList<String>();
+		List<String> assignIds = new ArrayList<String>();
+		for (AttributeAssign assign : found) {
+			if (assign.getOwnerGroupId() != null) {
+				groupIds.add(assign.getOwnerGroupId());
+			} else if (assign.getOwnerStemId() != null) {
+				stemIds.add(assign.getOwnerStemId());
+			}
+			assignIds.add(assign.getId());
+		}
+		for (List<String> batch : batches(groupIds)) {
+			for (Group group : new GroupFinder().assignGroupIds(batch).findGroups()) {
+				groupNames.put(group.getId(), group.getName());
+			}
+		}
+		for (List<String> batch : batches(stemIds)) {
+			for (Stem stem : StemFinder.findByUuids(gs, batch, null)) {
+				stemNames.put(stem.getUuid(), stem.getName());
+			}
+		}
+		for (List<String> batch : batches(assignIds)) {
+			for (AttributeAssignValue value : GrouperDAOFactory.getFactory()
+					.getAttributeAssignValue().findByAttributeAssignIds(batch)) {
+				Set<String> assignValues = values.get(value.getAttributeAssignId());
+				if (assignValues == null) {
+					assignValues = new HashSet<String>();
+					values.put(value.getAttributeAssignId(), assignValues);
+				}
+				assignValues.add(value.getValueString());
+			}
+		}
+
+		root.children.clear();
+		root.groupAssignment = null;
+		root.stemAssignment = null;
+		assignments.clear();
+		for (AttributeAssign assign : found) {
+			boolean stem = assign.getOwnerGroupId() == null;
+			String ownerName = stem ? stemNames.get(assign.getOwnerStemId())
+					: groupNames.get(assign.getOwnerGroupId());
+			if (ownerName != null) {
+				Assignment assignment = add(assign.getId(), ownerName, stem);
+				if (values.containsKey(assign.getId())) {
+					assignment.values.addAll(values.get(assign.getId()));
+				}
+			}
+		}
+		loadedAt = System.currentTimeMillis();
+
+		LOG.info("Indexed {} assignments of attribute {} in {} ms", new Object[] {
+				assignments.size(), attributeDefNameId, loadedAt - start });
+	}
+
+	/**
+	 * Same answer as checking the group's own assignment and then its parent
+	 * stems up to the root: the group's value counts if it is yes, otherwise
+	 * the nearest stem with an assignment decides.
+	 */
+	public synchronized boolean isSetToYes(String groupName) {
+		String[] path = groupName.split(":");
+		Node node = root;
+		Assignment nearestStem = root.stemAssignment;
+
+		for (int i = 0; i < path.length - 1 && node != null; i++) {
+			node = node.children.get(path[i]);
+			if (node != null && node.stemAssignment != null) {
+				nearestStem = node.stemAssignment;
+			}
+		}
+		Node groupNode = node == null ? null : node.children.get(path[path.length - 1]);
+		if (groupNode != null && groupNode.groupAssignment != null
+				&& groupNode.groupAssignment.isYes()) {
+			return true;
+		}
+		return nearestStem != null && nearestStem.isYes();
+	}
+
+	/**
+	 * Apply a change log entry to the index. Entries that don't touch this
+	 * attribute or the names it is assigned to are ignored.
+	 */
+	public synchronized void update(GrouperSession gs, ChangeLogEntry entry) {
+		if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_ADD)) {
+			if (attributeDefNameId.equals(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_ADD.attributeDefNameId))) {
+				String assignType = entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_ADD.assignType);
+				String ownerId = entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_ADD.ownerId1);
+				String assignId = entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_ADD.id);
+				if ("group".equals(assignType)) {
+					Group group = GroupFinder.findByUuid(gs, ownerId, false);
+					if (group != null) {
+						add(assignId, group.getName(), false);
+					}
+				} else if ("stem".equals(assignType)) {
+					Stem stem = StemFinder.findByUuid(gs, ownerId, false);
+					if (stem != null) {
+						add(assignId, stem.getName(), true);
+					}
+				}
+			}
+		} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_DELETE)) {
+			if (attributeDefNameId.equals(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_DELETE.attributeDefNameId))) {
+				remove(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_DELETE.id));
+			}
+		} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_VALUE_ADD)) {
+			if (attributeDefNameId.equals(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.attributeDefNameId))) {
+				String assignId = entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.attributeAssignId);
+				Assignment assignment = assignments.get(assignId);
+				if (assignment == null) {
+					assignment = find(gs, assignId);
+				}
+				if (assignment != null) {
+					assignment.values.add(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.value));
+				}
+			}
+		} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_VALUE_DELETE)) {
+			if (attributeDefNameId.equals(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_DELETE.attributeDefNameId))) {
+				Assignment assignment = assignments.get(
+						entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_DELETE.attributeAssignId));
+				if (assignment != null) {
+					assignment.values.remove(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_DELETE.value));
+				}
+			}
+		} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+			if ("name".equals(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged))) {
+				Node node = lookup(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue));
+				if (node != null && node.groupAssignment != null) {
+					Assignment assignment = node.groupAssignment;
+					node.groupAssignment = null;
+					prune(node);
+					Node target = lookupOrCreate(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name));
+					target.groupAssignment = assignment;
+					assignment.node = target;
+				}
+			}
+		} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)) {
+			Node node = lookup(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.name));
+			if (node != null && node.groupAssignment != null) {
+				assignments.remove(node.groupAssignment.id);
+				node.groupAssignment = null;
+				prune(node);
+			}
+		} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_UPDATE)) {
+			if ("name".equals(entry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.propertyChanged))) {
+				move(entry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.propertyOldValue),
+						entry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.name));
+			}
+		} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_DELETE)) {
+			Node node = lookup(entry.retrieveValueForLabel(ChangeLogLabels.STEM_DELETE.name));
+			if (node != null && node.stemAssignment != null) {
+				assignments.remove(node.stemAssignment.id);
+				node.stemAssignment = null;
+				prune(node);
+			}
+		}
+	}
+
+	// Index an assignment the change log hasn't told us about yet
+	private Assignment find(GrouperSession gs, String assignId) {
+		AttributeAssign assign = AttributeAssignFinder.findById(assignId, false);
+		if (assign == null) {
+			return null;
+		}
+		if (assign.getOwnerGroup() != null) {
+			return add(assignId, assign.getOwnerGroup().getName(), false);
+		} else if (assign.getOwnerStem() != null) {
+			return add(assignId, assign.getOwnerStem().getName(), true);
+		}
+		return null;
+	}
+
+	private Assignment add(String assignId, String ownerName, boolean stem) {
+		Node node = lookupOrCreate(ownerName);
+		Assignment assignment = new Assignment(assignId, node);
+		if (stem) {
+			node.stemAssignment = assignment;
+		} else {
+			node.groupAssignment = assignment;
+		}
+		assignments.put(assignId, assignment);
+		return assignment;
+	}
+
+	private void remove(String assignId) {
+		Assignment assignment = assignments.remove(assignId);
+		if (assignment != null) {
+			Node node = assignment.node;
+			if (node.stemAssignment == assignment) {
+				node.stemAssignment = null;
+			}
+			if (node.groupAssignment == assignment) {
+				node.groupAssignment = null;
+			}
+			prune(node);
+		}
+	}
+
+	// Re-parent a stem's subtree under its new name
+	private void move(String oldName, String newName) {
+		Node node = lookup(oldName);
+		if (node == null || node == root || newName == null) {
+			return;
+		}
+		Node parent = node.parent;
+		parent.children.remove(node.segment);
+		prune(parent);
+
+		int split = newName.lastIndexOf(':');
+		Node newParent = split < 0 ? root : lookupOrCreate(newName.substring(0, split));
+		node.segment = newName.substring(split + 1);
+		node.parent = newParent;
+		newParent.children.put(node.segment, node);
+	}
+
+	private Node lookup(String name) {
+		if (name == null) {
+			return null;
+		}
+		if (name.length() == 0) {
+			return root;
+		}
+		Node node = root;
+		for (String segment : name.split(":")) {
+			node = node.children.get(segment);
+			if (node == null) {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	private Node lookupOrCreate(String name) {
+		Node node = root;
+		if (name.length() == 0) {
+			return node;
+		}
+		for (String segment : name.split(":")) {
+			Node child = node.children.get(segment);
+			if (child == null) {
+				child = new Node(node, segment);
+				node.children.put(segment, child);
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	// Remove nodes that no longer hold an assignment or children
+	private void prune(Node node) {
+		while (node != root && node.children.isEmpty()
+				&& node.groupAssignment == null && node.stemAssignment == null) {
+			node.parent.children.remove(node.segment);
+			node = node.parent;
+		}
+	}
+
+	private static List<List<String>> batches(List<String> ids) {
+		List<List<String>> batches = new ArrayList<List<String>>();
+		for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+			batches.add(ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE)));
+		}
+		return batches;
+	}
+
+
+	/**
+	 * One path segment. A name can be both a stem and a group.
+	 */
+	private static class Node {
+		Node parent;
+		String segment;
+		final Map<String, Node> children = new HashMap<String, Node>();
+		Assignment groupAssignment;
+		Assignment stemAssignment;
+
+		Node(Node parent, String segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+	}
+
+	/**
+	 * An assignment of the attribute and its current values.
+	 */
+	private static class Assignment {
+		final String id;
+		Node node;
+		final Set<String> values = new HashSet<String>();
+
+		Assignment(String id, Node node) {
+			this.id = id;
+			this.node = node;
+		}
+
+		boolean isYes() {
+			return values.contains("yes");
+		}
+	}
+}
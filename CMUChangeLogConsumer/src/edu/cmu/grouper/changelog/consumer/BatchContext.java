@@ -0,0 +1,168 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.GroupFinder;
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.attr.assign.AttributeAssign;
+import edu.internet2.middleware.grouper.attr.finder.AttributeAssignFinder;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
+import edu.internet2.middleware.grouper.misc.GrouperDAOFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Groups and attribute assignments named by one batch of change log entries,
+ * loaded up front with bulk queries. Members are loaded into the member
+ * cache. Lookups of anything not prefetched fall back to a single query and
+ * the result, found or not, is kept for the rest of the batch. The query
+ * runs outside the lock, so dispatch lanes don't wait on each other's.
+ */
+public class BatchContext {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	// Names or ids per bulk query
+	private static final int BATCH_SIZE = 100;
+
+	// A null value records that the name or id wasn't found
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+	private final Map<String, AttributeAssign> attributeAssigns = new HashMap<String, AttributeAssign>();
+
+
+	/**
+	 * Collect the group names, member ids and attribute assign ids used by
+	 * the entries and resolve them with bulk queries.
+	 */
+	public void prefetch(List<ChangeLogEntry> changeLogEntryList, MemberCache memberCache) {
+		long start = System.currentTimeMillis();
+		Set<String> groupNames = new LinkedHashSet<String>();
+		Set<String> memberIds = new LinkedHashSet<String>();
+		Set<String> attributeAssignIds = new LinkedHashSet<String>();
+
+		for (ChangeLogEntry entry : changeLogEntryList) {
+			if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)) {
+				groupNames.add(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+				groupNames.add(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+				groupNames.add(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName));
+				memberIds.add(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.memberId));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+				groupNames.add(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName));
+				memberIds.add(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.memberId));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_ADD)) {
+				groupNames.add(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.ownerName));
+				memberIds.add(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.memberId));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_DELETE)) {
+				groupNames.add(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.ownerName));
+				memberIds.add(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.memberId));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_VALUE_ADD)) {
+				attributeAssignIds.add(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.attributeAssignId));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_VALUE_DELETE)) {
+				attributeAssignIds.add(entry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_DELETE.attributeAssignId));
+			}
+		}
+		groupNames.remove(null);
+		memberIds.remove(null);
+		attributeAssignIds.remove(null);
+
+		for (List<String> batch : batches(groupNames)) {
+			for (String groupName : batch) {
+				groups.put(groupName, null);
+			}
+			for (Group group : new GroupFinder().assignGroupNames(batch).findGroups()) {
+				groups.put(group.getName(), group);
+			}
+		}
+		for (List<String> batch : batches(attributeAssignIds)) {
+			for (String attributeAssignId : batch) {
+				attributeAssigns.put(attributeAssignId, null);
+			}
+			for (AttributeAssign assign : GrouperDAOFactory.getFactory().getAttributeAssign()
+					.findByIds(batch, null, false)) {
+				attributeAssigns.put(assign.getId(), assign);
+			}
+		}
+		memberCache.prefetch(memberIds);
+
+		LOG.debug("Prefetched {} groups, {} members and {} attribute assignments in {} ms", new Object[] {
+				groupNames.size(), memberIds.size(), attributeAssignIds.size(),
+				System.currentTimeMillis() - start });
+	}
+
+	/**
+	 * The group with this name, or null if there is none.
+	 *
+	 * @param session the calling thread's session, used if the group has to be looked up
+	 */
+	public Group findGroup(GrouperSession session, String groupName) {
+		synchronized (this) {
+			if (groups.containsKey(groupName)) {
+				return groups.get(groupName);
+			}
+		}
+		Group group = GroupFinder.findByName(session, groupName, false);
+		synchronized (this) {
+			groups.put(groupName, group);
+		}
+		return group;
+	}
+
+	/**
+	 * Keep groups that were loaded some other way, such as the child groups of a stem.
+	 */
+	public synchronized void putGroups(Set<Group> loaded) {
+		for (Group group : loaded) {
+			groups.put(group.getName(), group);
+		}
+	}
+
+	/**
+	 * The attribute assignment with this id, or null if there is none.
+	 */
+	public AttributeAssign findAttributeAssign(String attributeAssignId) {
+		synchronized (this) {
+			if (attributeAssigns.containsKey(attributeAssignId)) {
+				return attributeAssigns.get(attributeAssignId);
+			}
+		}
+		AttributeAssign assign = AttributeAssignFinder.findById(attributeAssignId, false);
+		synchronized (this) {
+			attributeAssigns.put(attributeAssignId, assign);
+		}
+		return assign;
+	}
+
+	private static List<List<String>> batches(Set<String> ids) {
+		List<String> list = new ArrayList<String>(ids);
+		List<List<String>> batches = new ArrayList<List<String>>();
+		for (int i = 0; i < list.size(); i += BATCH_SIZE) {
+			batches.add(list.subList(i, Math.min(list.size(), i + BATCH_SIZE)));
+		}
+		return batches;
+	}
+}
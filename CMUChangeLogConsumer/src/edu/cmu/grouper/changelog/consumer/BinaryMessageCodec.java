@@ -0,0 +1,266 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Compact length-prefixed format for high volume targets. A message is:
+ * <pre>
+ *   version byte (1)
+ *   operation token
+ *   field count varint, then a name token and a value string for each field
+ *   list flag byte, and if 1 a list name token, member count varint and member strings
+ * </pre>
+ * A varint is an unsigned LEB128 number. A string is a varint of its UTF-8
+ * length plus one followed by the bytes, with 0 for null. A token is a
+ * varint: 0 followed by a string, or n for entry n of TOKENS. Tokens are
+ * only ever added to the end of the table.
+ */
+public class BinaryMessageCodec implements MessageCodec.Binary {
+
+	public static final BinaryMessageCodec INSTANCE = new BinaryMessageCodec();
+
+	private static final int VERSION = 1;
+
+	// Operations and field names, numbered from 1
+	private static final String[] TOKENS = {
+		"name", "memberId", "description", "olddescription", "oldname", "memberList",
+		"syncOperation", "chunk", "chunks", "memberCount", "digest",
+		"createGroup", "updateGroup", "deleteGroup", "renameGroup", "deleteStem", "renameStem",
+		"removeAllMembers", "deleteGroupIsMemberOf", "renameGroupIsMemberOf",
+		"addMember", "removeMember", "addIsMemberOf", "removeIsMemberOf",
+		"addPrivilege", "removePrivilege",
+		"addMembers", "removeMembers", "addIsMemberOfBulk", "removeIsMemberOfBulk",
+		"fullSync", "fullSyncIsMemberOf", "fullSyncPrivilege",
+		"fullSyncBegin", "fullSyncChunk", "fullSyncEnd", "verifyGroup"
+	};
+	private static final Map<String, Integer> TOKEN_NUMBERS = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < TOKENS.length; i++) {
+			TOKEN_NUMBERS.put(TOKENS[i], i + 1);
+		}
+	}
+
+
+	public String getFormat() {
+		return "binary";
+	}
+
+	public byte[] encodeBytes(ProvisioningMessage message) {
+		Output out = new Output(256);
+		out.write(VERSION);
+		out.token(message.getOperation());
+		out.varint(message.getFieldCount());
+		for (int i = 0; i < message.getFieldCount(); i++) {
+			out.token(message.getFieldName(i));
+			out.string(message.getFieldValue(i));
+		}
+		if (message.hasList()) {
+			out.write(1);
+			out.token(message.getListName());
+			// Members may be read as they are encoded, so the count is only known afterwards
+			Output members = new Output(1024);
+			int count = 0;
+			for (String member : message.getMembers()) {
+				members.string(member);
+				count++;
+			}
+			out.varint(count);
+			out.append(members);
+		} else {
+			out.write(0);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Read a message written by encodeBytes.
+	 *
+	 * @throws IllegalArgumentException if the data isn't a message of a known version
+	 */
+	public ProvisioningMessage decode(byte[] data) {
+		Input in = new Input(data);
+		int version = in.read();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unknown binary message version " + version);
+		}
+		ProvisioningMessage message = new ProvisioningMessage(in.token());
+		for (int fields = in.varint(); fields > 0; fields--) {
+			String name = in.token();
+			message.field(name, in.string());
+		}
+		if (in.read() == 1) {
+			message.beginList(in.token());
+			for (int members = in.varint(); members > 0; members--) {
+				message.member(in.string());
+			}
+		}
+		return message;
+	}
+
+
+	private static class Output {
+
+		private byte[] buffer;
+		private int length = 0;
+
+		Output(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		void write(int value) {
+			ensure(1);
+			buffer[length++] = (byte) value;
+		}
+
+		void varint(int value) {
+			ensure(5);
+			while ((value & ~0x7f) != 0) {
+				buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buffer[length++] = (byte) value;
+		}
+
+		void token(String value) {
+			Integer number = TOKEN_NUMBERS.get(value);
+			if (number != null) {
+				varint(number);
+			} else {
+				varint(0);
+				string(value);
+			}
+		}
+
+		void string(String value) {
+			if (value == null) {
+				varint(0);
+				return;
+			}
+			if (isAscii(value)) {
+				varint(value.length() + 1);
+				ensure(value.length());
+				for (int i = 0; i < value.length(); i++) {
+					buffer[length++] = (byte) value.charAt(i);
+				}
+				return;
+			}
+			byte[] bytes = utf8(value);
+			varint(bytes.length + 1);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+
+		void append(Output other) {
+			ensure(other.length);
+			System.arraycopy(other.buffer, 0, buffer, length, other.length);
+			length += other.length;
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[length];
+			System.arraycopy(buffer, 0, result, 0, length);
+			return result;
+		}
+
+		private void ensure(int more) {
+			if (length + more > buffer.length) {
+				byte[] grown = new byte[Math.max(buffer.length * 2, length + more)];
+				System.arraycopy(buffer, 0, grown, 0, length);
+				buffer = grown;
+			}
+		}
+
+		private static boolean isAscii(String value) {
+			for (int i = 0; i < value.length(); i++) {
+				if (value.charAt(i) >= 0x80) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static byte[] utf8(String value) {
+			try {
+				return value.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+
+	private static class Input {
+
+		private final byte[] data;
+		private int position = 0;
+
+		Input(byte[] data) {
+			this.data = data;
+		}
+
+		int read() {
+			if (position >= data.length) {
+				throw new IllegalArgumentException("Binary message ends early");
+			}
+			return data[position++] & 0xff;
+		}
+
+		int varint() {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = read();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint in binary message");
+		}
+
+		String token() {
+			int number = varint();
+			if (number == 0) {
+				return string();
+			}
+			if (number > TOKENS.length) {
+				throw new IllegalArgumentException("Unknown token " + number + " in binary message");
+			}
+			return TOKENS[number - 1];
+		}
+
+		String string() {
+			int length = varint() - 1;
+			if (length < 0) {
+				return null;
+			}
+			if (length > data.length - position) {
+				throw new IllegalArgumentException("Binary message ends early");
+			}
+			try {
+				String value = new String(data, position, length, "UTF-8");
+				position += length;
+				return value;
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
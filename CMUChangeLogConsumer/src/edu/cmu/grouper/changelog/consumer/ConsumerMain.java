@@ -13,20 +13,22 @@ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
 
 package edu.cmu.grouper.changelog.consumer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.io.Serializable;
 
-import javax.jms.Connection;
-import javax.jms.DeliveryMode;
-import javax.jms.Destination;
-import javax.jms.MessageProducer;
-import javax.jms.Session;
-import javax.jms.TextMessage;
+import javax.jms.JMSException;
 
-import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.AsyncCallback;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -44,24 +46,21 @@ import edu.internet2.middleware.grouper.GroupFinder;
 import edu.internet2.middleware.grouper.GroupTypeFinder;
 import edu.internet2.middleware.grouper.GrouperSession;
 import edu.internet2.middleware.grouper.Member;
-import edu.internet2.middleware.grouper.MemberFinder;
 import edu.internet2.middleware.grouper.SubjectFinder;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogConsumerBase;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogProcessorMetadata;
 import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
+import edu.internet2.middleware.grouper.misc.GrouperSessionHandler;
 import edu.internet2.middleware.subject.Subject;
 import edu.internet2.middleware.grouper.attr.AttributeDefName;
 import edu.internet2.middleware.grouper.attr.finder.AttributeDefNameFinder;
-import edu.internet2.middleware.grouper.attr.finder.AttributeAssignFinder;
 import edu.internet2.middleware.grouper.attr.assign.AttributeAssign;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 
 
 
@@ -75,24 +74,78 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
 	//private static final Log LOG = LogFactory
 	//		.getLog(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
-	private static GrouperSession gs;
-	private static ActiveMQConnectionFactory connectionFactory;
-	private static Connection connection;	
+	private GrouperSession gs;
+	// Shared, long-lived ActiveMQ publisher for this consumer's broker
+	private MessagePublisher publisher;
+	// Each full sync worker thread publishes on its own connection
+	private final ThreadLocal<MessagePublisher> workerPublisher = new ThreadLocal<MessagePublisher>();
+	// Digests of the groups last published by a standalone full sync, null when not kept
+	private DigestStore digestStore;
+	// Local journal that messages go through when the outbox is on, and its publisher
+	private OutboxJournal outbox;
+	private OutboxSender outboxSender;
+	// Standalone full syncs send verifyGroup messages instead of member lists
+	private boolean fullSyncVerify = false;
 	// Allow large groups is this is set to yes
-	private static AttributeDefName allowLargeGroupsAttribute = null;
+	private AttributeDefName allowLargeGroupsAttribute = null;
 	// This is the maximum members to allow for a group to be provisioned
-	private static int maxMembers = 0;
-	private static AttributeDefName syncAttribute = null;
-	private static String consumerName = "";
-	private static boolean basicSyncType = false;
-	private static boolean iMOSyncType = false;
-	private static boolean useXmlMessageFormat = false;
-	private static HashMap<String, String> syncedObjects;
+	private int maxMembers = 0;
+	private AttributeDefName syncAttribute = null;
+	private String consumerName = "";
+	private boolean basicSyncType = false;
+	private boolean iMOSyncType = false;
+	private boolean useXmlMessageFormat = false;
+	// Codec for targets without one of their own in targetMessageFormats
+	private volatile MessageCodec defaultCodec = TextMessageCodec.JSON;
+	private volatile Map<String, MessageCodec> targetCodecs = Collections.emptyMap();
+	private volatile String codecDescription = "json";
+	// Sync eligibility per group, kept across batches
+	private EligibilityCache eligibilityCache;
+	// Groups already found to be within maxMembers in this batch
+	private GroupSizeCache groupSizes;
+	private MemberCache memberCache;
+	// Groups and attribute assignments looked up for the current batch
+	private BatchContext batchContext;
+	private boolean coalesceMemberships = false;
+	private MembershipCoalescer coalescer = new MembershipCoalescer();
+	// Member changes are sent in bulk messages of up to memberBulkSize members
+	private int memberBulkSize = 1;
+	private MemberBuffer memberBuffer = new MemberBuffer();
+	// Looks up entries of different groups in parallel when dispatchThreads is above 1, null otherwise
+	private KeyedDispatcher dispatcher;
+	// Set on a dispatch thread to collect an entry's messages for sending in sequence order
+	private final ThreadLocal<List<PendingWrite>> capturedWrites = new ThreadLocal<List<PendingWrite>>();
+	// Full syncs of more members than this are sent in chunks, 0 to always send one message
+	private int fullSyncChunkSize = 0;
+	// Members read per query during full syncs
+	private int memberPageSize = 1000;
+	// In-memory indexes of where the sync and allowLargeGroups attributes are assigned, null when disabled
+	private AttributeIndex syncIndex;
+	private AttributeIndex allowLargeGroupsIndex;
+	// Group sends into JMS transactions of transactionSize messages
+	private boolean transacted = false;
+	private int transactionSize = 0;
+	// Messages sent since the last commit
+	private int pendingMessages = 0;
+	// Send without waiting for the broker, tracking confirmed sequences
+	private boolean asyncSend = false;
+	private SequenceWatermark watermark;
+	// Send to all targets concurrently instead of one after another
+	private boolean parallelFanOut = false;
+	// Send once to a composite destination and let the broker copy to each target
+	private volatile boolean compositeFanOut = false;
+	// How long to wait for outstanding asynchronous sends at the end of a batch
+	private static final long ASYNC_SEND_TIMEOUT = 60000;
 	long currentId = 0;
-	private static String brokerURL = "";
-	private static String username = "";
-	private static String password = "";
+	private String brokerURL = "";
+	private String username = "";
+	private String password = "";
+	// Settings for the current run, also read by the outbox drainer
+	private volatile ConsumerProperties properties;
 	
+	// Grouper creates a new consumer for every run, so the one that keeps the
+	// caches, publisher and outbox of each consumer name between runs is kept here
+	private static final Map<String, ConsumerMain> consumers = new HashMap<String, ConsumerMain>();
 	
 	
 
@@ -104,14 +157,59 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 	public long processChangeLogEntries(
 			List<ChangeLogEntry> changeLogEntryList,
 			ChangeLogProcessorMetadata changeLogProcessorMetadata) {
+		return forConsumer(changeLogProcessorMetadata.getConsumerName())
+				.processEntries(changeLogEntryList, changeLogProcessorMetadata);
+	}
+
+	private static ConsumerMain forConsumer(String consumerName) {
+		synchronized (consumers) {
+			ConsumerMain consumer = consumers.get(consumerName);
+			if (consumer == null) {
+				consumer = new ConsumerMain();
+				consumers.put(consumerName, consumer);
+			}
+			return consumer;
+		}
+	}
+
+	// Runs of one consumer take turns; different consumers run in parallel
+	private synchronized long processEntries(
+			final List<ChangeLogEntry> changeLogEntryList,
+			final ChangeLogProcessorMetadata changeLogProcessorMetadata) {
 
 		
 		// initialize this consumer's consumerName from the change log metadata
             consumerName = changeLogProcessorMetadata.getConsumerName();
             LOG.debug("CMU Consumer Name '{}' - Setting name.", consumerName);
        
-        
+		// One root session serves every run, bound to the loader thread for the run
+		if (gs == null) {
+			gs = GrouperSession.startRootSession(false);
+			if (gs == null) {
+				LOG.error("'{}' - Couldn't process any records: Unable to get grouper session", consumerName);
+				return changeLogEntryList.isEmpty() ? -1
+						: changeLogEntryList.get(0).getSequenceNumber() - 1;
+			}
+		}
+		return (Long) GrouperSession.callbackGrouperSession(gs, new GrouperSessionHandler() {
+			public Object callback(GrouperSession grouperSession) {
+				return processBatch(changeLogEntryList, changeLogProcessorMetadata);
+			}
+		});
+	}
+
+	/**
+	 * Read the settings and resolve the attributes, unless they were already
+	 * read from the current grouper-loader.properties by an earlier run. The
+	 * settings are only marked as loaded once the codecs and outbox accept
+	 * them, so a bad change is read again on the next run.
+	 */
+	private void loadContext() throws IOException {
+		if (properties != null && properties.isCurrent()) {
+			return;
+		}
 		ConsumerProperties properties = new ConsumerProperties(consumerName);
+		LOG.info("'{}' - Loading settings", consumerName);
 
 		brokerURL = properties.getBrokerUrl();
 		username = properties.getUsername();
@@ -127,10 +225,38 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		iMOSyncType = properties.getSyncType().equalsIgnoreCase("isMemberOf") ? true : false;
 		// What outgoing message format shall we use. xml or json
 		useXmlMessageFormat = properties.getUseXmlMessageFormat();
-		// Setup Synced Object HashMap. 
-		syncedObjects = new HashMap<String, String>();
-		
-		
+		// Reuse the eligibility and member caches from earlier batches
+		initEligibilityCache(properties);
+		initMemberCache(properties);
+		coalesceMemberships = properties.getCoalesceMemberships();
+		memberBulkSize = properties.getMemberBulkSize();
+		fullSyncChunkSize = properties.getFullSyncChunkSize();
+		memberPageSize = properties.getMemberPageSize();
+		// Should sends be grouped into transactions. The outbox takes precedence.
+		boolean useOutbox = properties.getOutboxFile().length() > 0;
+		transacted = properties.getTransacted() && !useOutbox;
+		transactionSize = properties.getTransactionSize();
+		// Should sends be asynchronous. The outbox and transactions take precedence.
+		asyncSend = properties.getAsyncSend() && !transacted && !useOutbox;
+		if (properties.getAsyncSend() && properties.getTransacted() && !useOutbox) {
+			LOG.warn("'{}' - asyncSend is ignored when transacted is set", consumerName);
+		}
+		if (useOutbox && (properties.getTransacted() || properties.getAsyncSend())) {
+			LOG.warn("'{}' - transacted and asyncSend are ignored when outboxFile is set", consumerName);
+		}
+		// How to publish to multiple targets. sequential, parallel or composite
+		parallelFanOut = properties.getFanOutMode().equalsIgnoreCase("parallel") ? true : false;
+		compositeFanOut = properties.getFanOutMode().equalsIgnoreCase("composite") ? true : false;
+		initCodecs(properties);
+		initOutbox(properties);
+		initDispatcher(properties);
+
+		this.properties = properties;
+	}
+
+	private long processBatch(
+			List<ChangeLogEntry> changeLogEntryList,
+			ChangeLogProcessorMetadata changeLogProcessorMetadata) {
 
 		for (ChangeLogEntry changeLogEntry : changeLogEntryList) {
 			currentId = changeLogEntry.getSequenceNumber();
@@ -138,424 +264,706 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		}
 
 		try {
-			// Create a Connection Factory and connection
-			connectionFactory = new ActiveMQConnectionFactory(username,
-					password, brokerURL);
-			connection = connectionFactory.createConnection();
-			connection.start();
+			loadContext();
+		} catch (IllegalArgumentException e) {
+			LOG.error("'{}' - " + e.getMessage() + " Sequence:" + currentId, consumerName);
+			return currentId - 1;
+		} catch (IOException e) {
+			LOG.error("'{}' - Error opening outbox: " + e.getMessage() + " Sequence:" + currentId, consumerName);
+			return currentId - 1;
+		}
+		boolean useOutbox = outbox != null;
+		memberBuffer.clear();
+		pendingMessages = 0;
+
+		// Member counts read during this batch already include all of its entries
+		if (!changeLogEntryList.isEmpty()) {
+			groupSizes.setHorizon(changeLogEntryList.get(changeLogEntryList.size() - 1).getSequenceNumber());
+		}
+		// Last sequence whose messages are all committed to the broker
+		long lastCommittedId = currentId - 1;
+		watermark = asyncSend ? new SequenceWatermark(currentId - 1, properties.getMaxInFlight()) : null;
+
+		try {
+			// Reuse the warm connection from the last run, reconnecting if it has failed
+			publisher = MessagePublisher.getInstance(consumerName, brokerURL, username, password);
+			publisher.setTransacted(transacted);
+			publisher.setCompressThreshold(properties.getCompressThreshold());
+			// With an outbox the drainer publishes, so the broker being down doesn't stop the batch
+			if (!useOutbox) {
+				publisher.connect();
+			}
 		} catch (Exception e) {
 			LOG.error("'{}' - Error connecting to ActiveMQ " + e.getMessage()
 					+ " Sequence:" + currentId, consumerName);
 			return currentId - 1;
 		}
 
+		// Entries from segmentStart up to segmentEnd are being looked up on the dispatch threads
+		List<Future<List<PendingWrite>>> segment = Collections.emptyList();
+		int segmentStart = 0;
+		int segmentEnd = 0;
+
 		try {
-			// get the existing Grouper session from the loader
-			//gs = GrouperSession.staticGrouperSession();
-			gs = GrouperSession.startRootSession();
-			if (gs == null) {
-				LOG.error("'{}' - Couldn't process any records: Unable to get grouper session "
-						+ currentId, consumerName);
-				return currentId - 1;
+			initAttributeIndexes(properties);
+			// Resolve everything the batch refers to with a few bulk queries
+			batchContext = new BatchContext();
+			batchContext.prefetch(changeLogEntryList, memberCache);
+			// Membership changes that cancel out within the batch aren't sent
+			Set<Long> coalesced = coalesceMemberships ? coalescer.coalesce(changeLogEntryList)
+					: Collections.<Long>emptySet();
+			if (!coalesced.isEmpty()) {
+				LOG.info("'{}' - Skipped {} membership entries that cancel out, in total {}",
+						new Object[] { consumerName, coalesced.size(), coalescer });
 			}
 			
-			for (ChangeLogEntry changeLogEntry : changeLogEntryList) {
-				Member member;
-				String groupName;
-				String stemName;
+			for (int i = 0; i < changeLogEntryList.size(); i++) {
+				ChangeLogEntry changeLogEntry = changeLogEntryList.get(i);
 
 				currentId = changeLogEntry.getSequenceNumber();
 
-				LOG.debug("'{}' - Processing sequence: "
-						+ changeLogEntry.getSequenceNumber()
-						+ " ChangeLogType: "
-						+ changeLogEntry.getChangeLogType(), consumerName);
-
-				if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_DELETE)) {
-					stemName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.STEM_DELETE.name);
+				if (asyncSend) {
+					// Stop early once the broker has rejected a send
+					if (watermark.getFailure() != null) {
+						throw new RuntimeException("Asynchronous send failed for sequence "
+								+ watermark.getFailedSequence(), watermark.getFailure());
+					}
+					watermark.open(currentId);
+				}
 
-					if (stemName == null) {
-						LOG.error("'{}' - No stem name for stem update/rename change type. Skipping sequence: "
-								+ currentId, consumerName);
+				if (dispatcher == null) {
+					processEntry(changeLogEntry, currentId, coalesced);
+				} else {
+					// Look up the entries up to the next one that can't run alongside others
+					if (i >= segmentEnd) {
+						segment = dispatchSegment(changeLogEntryList, i, coalesced);
+						segmentStart = i;
+						segmentEnd = i + segment.size();
+					}
+					if (i < segmentEnd) {
+						replayWrites(segment.get(i - segmentStart), currentId);
 					} else {
-						// We will send a message regardless of the sync attribute, since there are serveral 
-						// conditions where a stem is in use in the downstream system and either the attribute 
-						// isn't set to yes on the stem or any of its groups.
-						if (basicSyncType) {
-							String mesg = getStemDeletedMessage(stemName);
-							writeMessage(mesg, stemName, currentId);
-						}
+						processEntry(changeLogEntry, currentId, coalesced);
+					}
+				}
+
+				LOG.debug("{} - Sucessfully processed sequence: "
+						+ changeLogEntry.getSequenceNumber(), consumerName);
+
+				// Commit at entry boundaries so an entry's messages are never split
+				if (transacted) {
+					if (pendingMessages + memberBuffer.size() >= transactionSize) {
+						flushMembers();
+						commitMessages();
+					}
+					if (pendingMessages == 0 && memberBuffer.isEmpty()) {
+						lastCommittedId = currentId;
 					}
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_UPDATE)) {
-					stemName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.name);
-					
+				}
+				if (asyncSend) {
+					watermark.close(currentId);
+				}
+			}
+
+			flushMembers();
+			if (transacted) {
+				commitMessages();
+			}
+			if (outbox != null) {
+				// Acknowledged once the batch's messages are on disk
+				outbox.sync();
+				LOG.info("'{}' - Outbox: {}", consumerName, outbox);
+			}
+			LOG.info("'{}' - Eligibility cache: {}", consumerName, eligibilityCache);
+			LOG.info("'{}' - Group sizes: {}", consumerName, groupSizes);
+			LOG.info("'{}' - Member cache: {}", consumerName, memberCache);
+			LOG.info("'{}' - Compression: {}", consumerName, publisher.getCompressionStats());
+			if (dispatcher != null) {
+				LOG.info("'{}' - Dispatch: {}", consumerName, dispatcher);
+			}
+			if (asyncSend) {
+				return awaitWatermark();
+			}
+		} catch (Exception e) {
+			LOG.error("Error processing sequence " + currentId, e);
+			// Later entries are looked up again in the next run
+			for (Future<List<PendingWrite>> resolution : segment) {
+				resolution.cancel(false);
+			}
+			changeLogProcessorMetadata.registerProblem(e,
+					"Error processing sequence " + currentId, currentId);
+
+			if (transacted) {
+				// Nothing after the last commit reached the queue
+				publisher.rollback();
+				pendingMessages = 0;
+				memberBuffer.clear();
+				return lastCommittedId;
+			}
+			if (asyncSend) {
+				// The failed entry was never closed and buffered entries are still held,
+				// so the watermark stops before them
+				memberBuffer.clear();
+				return awaitWatermark();
+			}
+			if (outbox != null) {
+				try {
+					outbox.sync();
+				} catch (Exception syncException) {
+					LOG.error("'{}' - Error writing outbox " + outbox.getFile(), syncException);
+					memberBuffer.clear();
+					return lastCommittedId;
+				}
+			}
+			if (!memberBuffer.isEmpty()) {
+				// Buffered member changes were never sent
+				long firstUnsent = memberBuffer.getFirstSequence();
+				memberBuffer.clear();
+				return Math.min(currentId, firstUnsent) - 1;
+			}
+			return currentId - 1;
+		}
+
+		return currentId;
+	}
+
+	/**
+	 * Bring the caches up to date with one entry and write its messages.
+	 */
+	private void processEntry(ChangeLogEntry changeLogEntry, long sequence, Set<Long> coalesced) {
+		MemberCache.CachedMember member;
+		String groupName;
+		String stemName;
+
+		updateAttributeIndexes(changeLogEntry);
+		updateGroupSizes(changeLogEntry);
+		updateMemberCache(changeLogEntry);
+
+		LOG.debug("'{}' - Processing sequence: "
+				+ changeLogEntry.getSequenceNumber()
+				+ " ChangeLogType: "
+				+ changeLogEntry.getChangeLogType(), consumerName);
+
+		if (coalesced.contains(sequence)) {
+			LOG.debug("'{}' - Skipping sequence " + sequence
+					+ " as it is cancelled by a later membership change", consumerName);
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_DELETE)) {
+			stemName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.STEM_DELETE.name);
+
+			if (stemName == null) {
+				LOG.error("'{}' - No stem name for stem update/rename change type. Skipping sequence: "
+						+ sequence, consumerName);
+			} else {
+				eligibilityCache.invalidateStem(stemName);
+				// We will send a message regardless of the sync attribute, since there are serveral 
+				// conditions where a stem is in use in the downstream system and either the attribute 
+				// isn't set to yes on the stem or any of its groups.
+				if (basicSyncType) {
+					ProvisioningMessage mesg = getStemDeletedMessage(stemName);
+					writeMessage(mesg, stemName, sequence);
+				}
+			}
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_UPDATE)) {
+			stemName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.name);
+			
         			String propertyChanged = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.propertyChanged);
         			String oldStemName = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.propertyOldValue);
 
-					if (stemName == null) {
-						LOG.error("'{}' - No stem name for stem update/rename change type. Skipping sequence: "
-								+ currentId, consumerName);
-					} else if (!"name".equalsIgnoreCase(propertyChanged)) {
-						LOG.debug("'{}' - Stem change was to something other than Stem Name. Skipping sequence: "
-								+ currentId, consumerName);
-					} else {
-
-						Stem stem = StemFinder.findByName(gs, stemName, false);
-						// We will send a message regardless of the sync attribute, since there are serveral 
-						// conditions where a stem is in use in the downstream system and either the attribute 
-						// isn't set to yes on the stem or any of its groups.
-						if (stem != null) {
-							if (basicSyncType) {
-								String mesg = getStemRenamedMessage(stemName, oldStemName);
-								writeMessage(mesg, stemName, currentId);
-							}
-						} else {
-						   LOG.info ("'{}' - stem " + stemName + " will not be renamed.", consumerName);
-						}					
+			if (stemName == null) {
+				LOG.error("'{}' - No stem name for stem update/rename change type. Skipping sequence: "
+						+ sequence, consumerName);
+			} else if (!"name".equalsIgnoreCase(propertyChanged)) {
+				LOG.debug("'{}' - Stem change was to something other than Stem Name. Skipping sequence: "
+						+ sequence, consumerName);
+			} else {
+				// Groups under the stem now have new names and possibly new parent attributes
+				eligibilityCache.invalidateStem(oldStemName);
+				eligibilityCache.invalidateStem(stemName);
+
+				Stem stem = StemFinder.findByName(gs, stemName, false);
+				// We will send a message regardless of the sync attribute, since there are serveral 
+				// conditions where a stem is in use in the downstream system and either the attribute 
+				// isn't set to yes on the stem or any of its groups.
+				if (stem != null) {
+					if (basicSyncType) {
+						ProvisioningMessage mesg = getStemRenamedMessage(stemName, oldStemName);
+						writeMessage(mesg, stemName, sequence);
 					}
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)) {
-					groupName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name);
-
-					if (groupName == null) {
-						LOG.error("'{}' - No group name for group add change type. Skipping sequence: "
-								+ currentId, consumerName);
+				} else {
+				   LOG.info ("'{}' - stem " + stemName + " will not be renamed.", consumerName);
+				}					
+			}
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)) {
+			groupName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name);
+
+			if (groupName == null) {
+				LOG.error("'{}' - No group name for group add change type. Skipping sequence: "
+						+ sequence, consumerName);
+			} else {
+				if (groupOk(groupName) && basicSyncType) {
+					ProvisioningMessage mesg = getGroupAddedMessage(groupName);
+					writeMessage(mesg, groupName, sequence);
+				} else {
+				   LOG.info ("'{}' - group " + groupName + " will not be added.", consumerName);
+				}					
+			}
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+			groupName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name);
+			String groupDescription = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.description);
+
+			if (groupName == null) {
+				LOG.error("'{}' - No group name for group update change type. Skipping sequence: "
+						+ sequence, consumerName);
+			} else {
+				// A renamed group may have moved under stems with different attributes
+				if ("name".equals(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged))) {
+					eligibilityCache.invalidate(changeLogEntry
+							.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue));
+					eligibilityCache.invalidate(groupName);
+				}
+				if (groupOk(groupName)) {
+					String propertyChanged = changeLogEntry
+							.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged);
+					if (propertyChanged.equals("description")) {
+						String groupOldDescription = changeLogEntry
+								.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue);
+						if (groupOldDescription == null) {
+							groupOldDescription = "";
+						}
+						if (basicSyncType) {
+							ProvisioningMessage mesg = getGroupUpdatedMessage(groupName, groupDescription, groupOldDescription);
+							writeMessage(mesg, groupName, sequence);
+						}
+					} else if (propertyChanged.equals("name")) {
+						String groupOldName = changeLogEntry
+								.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue);
+						if (basicSyncType) {
+							ProvisioningMessage mesg = getGroupRenamedMessage(groupName, groupOldName);
+							writeMessage(mesg, groupName, sequence);
+						}
+						if (iMOSyncType) {
+							ProvisioningMessage mesgIsMemberOf = getGroupIsMemberOfRenamedMessage(groupName, groupOldName);
+							writeMessage(mesgIsMemberOf, groupName, sequence);
+						}
 					} else {
-						if (groupOk(groupName) && basicSyncType) {
-							String mesg = getGroupAddedMessage(groupName);
-							writeMessage(mesg, groupName, currentId);
-						} else {
-						   LOG.info ("'{}' - group " + groupName + " will not be added.", consumerName);
-						}					
+						LOG.debug("'{}' - Skipping sequence "
+								+ changeLogEntry.getSequenceNumber()
+								+ " as group update property: "
+								+ propertyChanged + " is not handled", consumerName);
 					}
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
-					groupName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name);
-					String groupDescription = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.description);
-
-					if (groupName == null) {
-						LOG.error("'{}' - No group name for group update change type. Skipping sequence: "
-								+ currentId, consumerName);
-					} else {
-						if (groupOk(groupName)) {
-							String propertyChanged = changeLogEntry
-									.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged);
-							if (propertyChanged.equals("description")) {
-								String groupOldDescription = changeLogEntry
-										.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue);
-								if (groupOldDescription == null) {
-									groupOldDescription = "";
-								}
-								if (basicSyncType) {
-									String mesg = getGroupUpdatedMessage(groupName, groupDescription, groupOldDescription);
-									writeMessage(mesg, groupName, currentId);
-								}
-							} else if (propertyChanged.equals("name")) {
-								String groupOldName = changeLogEntry
-										.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue);
-								if (basicSyncType) {
-									String mesg = getGroupRenamedMessage(groupName, groupOldName);
-									writeMessage(mesg, groupName, currentId);
-								}
-								if (iMOSyncType) {
-									String mesgIsMemberOf = getGroupIsMemberOfRenamedMessage(groupName, groupOldName);
-									writeMessage(mesgIsMemberOf, groupName, currentId);
-								}
-							} else {
-								LOG.debug("'{}' - Skipping sequence "
-										+ changeLogEntry.getSequenceNumber()
-										+ " as group update property: "
-										+ propertyChanged + " is not handled", consumerName);
+				}
+			}
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)) {
+			groupName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.name);							
+			deleteGroup (groupName, sequence);
+			
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+			groupName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName);
+			member = getMemberFromId(changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.memberId));
+
+			if (groupName == null) {
+				LOG.error("'{}' - No group name for membership add change type. Skipping sequence:"
+						+ sequence, consumerName);
+			} else {
+				if (groupOk(groupName)) {
+					if (member != null) {
+						String memberName = null;
+					    // Only sync subjects, not nested group names.
+						if (member.getSubjectType()
+								.equals("person")) {
+							memberName = member.getSubjectId();
+							if (!basicSyncType) {
+								ProvisioningMessage mesgIsMemberOf = getIsMemberOfAddedMessage(
+										groupName, memberName);
+								writeMemberMessage("addIsMemberOfBulk", groupName, memberName,
+										mesgIsMemberOf, sequence);
 							}
-						}
-					}
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)) {
-					groupName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.name);							
-					deleteGroup (groupName);
-					
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
-					groupName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName);
-					member = getMemberFromId(changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.memberId));
-
-					if (groupName == null) {
-						LOG.error("'{}' - No group name for membership add change type. Skipping sequence:"
-								+ currentId, consumerName);
-					} else {
-						if (groupOk(groupName)) {
-							if (member != null) {
-								String memberName = null;
-							    // Only sync subjects, not nested group names.
-								if (member.getSubjectType().toString()
-										.equals("person")) {
-									memberName = member.getSubjectId();
-									if (!basicSyncType) {
-										String mesgIsMemberOf = getIsMemberOfAddedMessage(
-												groupName, memberName);
-										writeMessage(mesgIsMemberOf, groupName, currentId);
-									}
-									if (basicSyncType) {
-										String mesg = getGroupMemberAddedMessage(groupName,memberName);
-										writeMessage(mesg, groupName, currentId);
-									}
-								}
+							if (basicSyncType) {
+								ProvisioningMessage mesg = getGroupMemberAddedMessage(groupName,memberName);
+								writeMemberMessage("addMembers", groupName, memberName, mesg, sequence);
 							}
 						}
 					}
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
-					groupName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName);
-					member = getMemberFromId(changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.memberId));
-
-					if (groupName == null) {
-						LOG.error("No group name for membership delete change type. Skipping sequence: "
-								+ currentId);
-					} else {
-						if (groupOk(groupName)) {
-							if (member != null) {
-								String memberName = null;
-								
-								if (member.getSubjectType().toString()
-										.equals("person")) {
-									memberName = member.getSubjectId();
-									if (!basicSyncType) {
-										String mesgIsMemberOf = getIsMemberOfDeletedMessage(
-												groupName, memberName);
-										writeMessage(mesgIsMemberOf, groupName,
-												currentId);
-									}
-								} else {
-									memberName = member.getName();
-								}
-								if (basicSyncType) {
-									String mesg = getGroupMemberDeletedMessage(groupName, memberName);
-									writeMessage(mesg, groupName, currentId);
-								}
+				}
+			}
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+			groupName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName);
+			member = getMemberFromId(changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.memberId));
+
+			if (groupName == null) {
+				LOG.error("No group name for membership delete change type. Skipping sequence: "
+						+ sequence);
+			} else {
+				if (groupOk(groupName)) {
+					if (member != null) {
+						String memberName = null;
+						
+						if (member.getSubjectType()
+								.equals("person")) {
+							memberName = member.getSubjectId();
+							if (!basicSyncType) {
+								ProvisioningMessage mesgIsMemberOf = getIsMemberOfDeletedMessage(
+										groupName, memberName);
+								writeMemberMessage("removeIsMemberOfBulk", groupName, memberName,
+										mesgIsMemberOf, sequence);
 							}
+						} else {
+							memberName = member.getName();
+						}
+						if (basicSyncType) {
+							ProvisioningMessage mesg = getGroupMemberDeletedMessage(groupName, memberName);
+							writeMemberMessage("removeMembers", groupName, memberName, mesg, sequence);
 						}
 					}
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_ADD)
-						&& (changeLogEntry.retrieveValueForLabel(
+				}
+			}
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_ADD)
+				&& (changeLogEntry.retrieveValueForLabel(
+						ChangeLogLabels.PRIVILEGE_ADD.privilegeName)
+						.equals("admin") || changeLogEntry
+						.retrieveValueForLabel(
 								ChangeLogLabels.PRIVILEGE_ADD.privilegeName)
-								.equals("admin") || changeLogEntry
-								.retrieveValueForLabel(
-										ChangeLogLabels.PRIVILEGE_ADD.privilegeName)
-								.equals("update"))) {
-					groupName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.ownerName);
-
-					member = getMemberFromId(changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.memberId));
-
-					if (groupName == null) {
-						LOG.error("No group name for privilege add change type. Skipping sequence: "
-								+ currentId);
-					} else {
-						if (groupOk(groupName)) {
-							if (member != null) {
-								String memberName = null;
-								if (basicSyncType) {
-								   if (member.getSubjectType().toString()
-										.equals("person")) {
-										memberName = member.getSubjectId();
-									//String mesgPrivilegeAdd = getPrivilegeAddedMessage(
-									//		groupName, memberName);
-									//writeMessage(mesgPrivilegeAdd, groupName,
-									//		currentId);
-									} else {
-										memberName = member.getName();
-									}
-									String mesg = getPrivilegeAddedMessage(groupName,
-												memberName);
-									writeMessage(mesg, groupName, currentId);
-								}
+						.equals("update"))) {
+			groupName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.ownerName);
+
+			member = getMemberFromId(changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.memberId));
+
+			if (groupName == null) {
+				LOG.error("No group name for privilege add change type. Skipping sequence: "
+						+ sequence);
+			} else {
+				if (groupOk(groupName)) {
+					if (member != null) {
+						String memberName = null;
+						if (basicSyncType) {
+						   if (member.getSubjectType()
+								.equals("person")) {
+								memberName = member.getSubjectId();
+							//String mesgPrivilegeAdd = getPrivilegeAddedMessage(
+							//		groupName, memberName);
+							//writeMessage(mesgPrivilegeAdd, groupName,
+							//		sequence);
+							} else {
+								memberName = member.getName();
 							}
+							ProvisioningMessage mesg = getPrivilegeAddedMessage(groupName,
+										memberName);
+							writeMessage(mesg, groupName, sequence);
 						}
 					}
-				} else if (changeLogEntry
-						.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_DELETE)
-						&& (changeLogEntry.retrieveValueForLabel(
+				}
+			}
+		} else if (changeLogEntry
+				.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_DELETE)
+				&& (changeLogEntry.retrieveValueForLabel(
+						ChangeLogLabels.PRIVILEGE_ADD.privilegeName)
+						.equals("admin") || changeLogEntry
+						.retrieveValueForLabel(
 								ChangeLogLabels.PRIVILEGE_ADD.privilegeName)
-								.equals("admin") || changeLogEntry
-								.retrieveValueForLabel(
-										ChangeLogLabels.PRIVILEGE_ADD.privilegeName)
-								.equals("update"))) {
-					groupName = changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.ownerName);
-
-					member = getMemberFromId(changeLogEntry
-							.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.memberId));
-
-					if (groupName == null) {
-						LOG.error("No group name for privilege add change type. Skipping sequence: "
-								+ currentId);
-					} else {
-						if (groupOk(groupName)) {
-							if (member != null) {
-								String memberName = null;
-								
-								if (member.getSubjectType().toString()
-										.equals("person")) {
-									memberName = member.getSubjectId();
-									//String mesgPrivilegeDelete = getPrivilegeDeletedMessage(
-									//		groupName, memberName);
-									//writeMessage(mesgPrivilegeDelete, groupName,
-									//		currentId);
-								} else {
-									memberName = member.getName();
-								}
-								if (basicSyncType) {
-									String mesg = getPrivilegeDeletedMessage(groupName,
-											memberName);
-									writeMessage(mesg, groupName, currentId);
-								}
-							}
+						.equals("update"))) {
+			groupName = changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.ownerName);
+
+			member = getMemberFromId(changeLogEntry
+					.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.memberId));
+
+			if (groupName == null) {
+				LOG.error("No group name for privilege add change type. Skipping sequence: "
+						+ sequence);
+			} else {
+				if (groupOk(groupName)) {
+					if (member != null) {
+						String memberName = null;
+						
+						if (member.getSubjectType()
+								.equals("person")) {
+							memberName = member.getSubjectId();
+							//String mesgPrivilegeDelete = getPrivilegeDeletedMessage(
+							//		groupName, memberName);
+							//writeMessage(mesgPrivilegeDelete, groupName,
+							//		sequence);
+						} else {
+							memberName = member.getName();
+						}
+						if (basicSyncType) {
+							ProvisioningMessage mesg = getPrivilegeDeletedMessage(groupName,
+									memberName);
+							writeMessage(mesg, groupName, sequence);
 						}
 					}
-				} else if (changeLogEntry
-							.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_VALUE_ADD)) {
-
-					final String attributeDefNameId = 
-								changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.attributeDefNameId);
-			        final String value = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.value);
-					
-					AttributeAssign theAttributeAssign = AttributeAssignFinder.findById(	
-							changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.attributeAssignId), false);
-					final Group theGroup = theAttributeAssign != null ? theAttributeAssign.getOwnerGroup() : null;
-					boolean isGroup = (theGroup != null) ? true : false;
-					final Stem theStem = theAttributeAssign != null ? theAttributeAssign.getOwnerStem() : null;
-					boolean isStem = (theStem != null) ? true : false;
-
-					// This is the Sync or Allow Large Groups Attribute
-					if (syncAttribute.getId().equalsIgnoreCase(attributeDefNameId) ||
-							allowLargeGroupsAttribute.getId().equalsIgnoreCase(attributeDefNameId)) {
-						// The value is set to yes
-						if (value.equalsIgnoreCase("yes")) {
-							if (isGroup) {
-								syncedObjects.remove(theGroup.getName());
-								if (groupOk (theGroup.getName())){
-									syncGroup(theGroup);
-								}
-							} else if (isStem) {
-								final Set<edu.internet2.middleware.grouper.Group> groups = theStem.getChildGroups(Scope.SUB);
-
-				                for (edu.internet2.middleware.grouper.Group group : groups) {
-									syncedObjects.remove(group.getName());
-									if (groupOk (group.getName())) {
-				                   		syncGroup(group);
-									}
-								}
+				}
+			}
+		} else if (changeLogEntry
+					.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_VALUE_ADD)) {
+
+			final String attributeDefNameId = 
+						changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.attributeDefNameId);
+	        final String value = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.value);
+			
+			AttributeAssign theAttributeAssign = batchContext.findAttributeAssign(
+					changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_ADD.attributeAssignId));
+			final Group theGroup = theAttributeAssign != null ? theAttributeAssign.getOwnerGroup() : null;
+			boolean isGroup = (theGroup != null) ? true : false;
+			final Stem theStem = theAttributeAssign != null ? theAttributeAssign.getOwnerStem() : null;
+			boolean isStem = (theStem != null) ? true : false;
+
+			// This is the Sync or Allow Large Groups Attribute
+			if (syncAttribute.getId().equalsIgnoreCase(attributeDefNameId) ||
+					allowLargeGroupsAttribute.getId().equalsIgnoreCase(attributeDefNameId)) {
+				invalidateEligibility(theGroup, theStem);
+				// The value is set to yes
+				if (value.equalsIgnoreCase("yes")) {
+					if (isGroup) {
+						if (groupOk (theGroup.getName())){
+							syncGroup(theGroup, sequence);
+						}
+					} else if (isStem) {
+						final Set<edu.internet2.middleware.grouper.Group> groups = theStem.getChildGroups(Scope.SUB);
+						batchContext.putGroups(groups);
+
+		                for (edu.internet2.middleware.grouper.Group group : groups) {
+							if (groupOk (group.getName())) {
+		                   		syncGroup(group, sequence);
 							}
 						}
-						// The value is set to no
-						if (value.equalsIgnoreCase("no")) {
-							if (isGroup) {
-								syncedObjects.remove(theGroup.getName());
-								if (!groupOk (theGroup.getName())){
-									removeAllMembers (theGroup.getName());
-								}
-							} else if (isStem) {
-								final Set<edu.internet2.middleware.grouper.Group> groups = theStem.getChildGroups(Scope.SUB);
-
-				                for (edu.internet2.middleware.grouper.Group group : groups) {
-									syncedObjects.remove(group.getName());
-									if (!groupOk (group.getName())) {
-				                   		removeAllMembers (group.getName());
-									}
-								}
+					}
+				}
+				// The value is set to no
+				if (value.equalsIgnoreCase("no")) {
+					if (isGroup) {
+						if (!groupOk (theGroup.getName())){
+							removeAllMembers (theGroup.getName(), sequence);
+						}
+					} else if (isStem) {
+						final Set<edu.internet2.middleware.grouper.Group> groups = theStem.getChildGroups(Scope.SUB);
+						batchContext.putGroups(groups);
+
+		                for (edu.internet2.middleware.grouper.Group group : groups) {
+							if (!groupOk (group.getName())) {
+		                   		removeAllMembers (group.getName(), sequence);
 							}
 						}
-					}	
-													
+					}
+				}
+			}	
+											
+		} else if (changeLogEntry
+					.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_VALUE_DELETE)) {
+
+			final String attributeDefNameId = 
+						changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_DELETE.attributeDefNameId);
+
+			// A removed sync or allowLargeGroups value changes eligibility of its owner
+			if (syncAttribute.getId().equalsIgnoreCase(attributeDefNameId) ||
+					allowLargeGroupsAttribute.getId().equalsIgnoreCase(attributeDefNameId)) {
+				AttributeAssign theAttributeAssign = batchContext.findAttributeAssign(
+						changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_VALUE_DELETE.attributeAssignId));
+				if (theAttributeAssign != null) {
+					invalidateEligibility(theAttributeAssign.getOwnerGroup(), theAttributeAssign.getOwnerStem());
 				} else {
-					LOG.debug("{} - Skipping sequence: "
-							+ changeLogEntry.getSequenceNumber()
-							+ " as changelog type "
-							+ changeLogEntry.getChangeLogType()
-							+ " is not handled", consumerName);
+					eligibilityCache.clear();
 				}
+			}
 
-				LOG.debug("{} - Sucessfully processed sequence: "
-						+ changeLogEntry.getSequenceNumber(), consumerName);
+		} else if (changeLogEntry
+					.equalsCategoryAndAction(ChangeLogTypeBuiltin.ATTRIBUTE_ASSIGN_DELETE)) {
+
+			final String attributeDefNameId = 
+						changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_DELETE.attributeDefNameId);
+
+			// A removed sync or allowLargeGroups assignment changes eligibility of its owner
+			if (syncAttribute.getId().equalsIgnoreCase(attributeDefNameId) ||
+					allowLargeGroupsAttribute.getId().equalsIgnoreCase(attributeDefNameId)) {
+				final String assignType = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_DELETE.assignType);
+				final String ownerId = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.ATTRIBUTE_ASSIGN_DELETE.ownerId1);
+				Group ownerGroup = "group".equals(assignType) ? GroupFinder.findByUuid(gs, ownerId, false) : null;
+				Stem ownerStem = "stem".equals(assignType) ? StemFinder.findByUuid(gs, ownerId, false) : null;
+				if (ownerGroup != null || ownerStem != null) {
+					invalidateEligibility(ownerGroup, ownerStem);
+				} else {
+					eligibilityCache.clear();
+				}
 			}
-		} catch (Exception e) {
-			LOG.error("Error processing sequence " + currentId, e);
-			changeLogProcessorMetadata.registerProblem(e,
-					"Error processing sequence " + currentId, currentId);
 
-			return currentId - 1;
-		} finally {
-			if (connection != null) {
-				try {
-					connection.close();
-				} catch (Exception e) {
-					LOG.error("Error closing ActiveMQ connection" + currentId,
-							e);
-					return currentId - 1;
+		} else {
+			LOG.debug("{} - Skipping sequence: "
+					+ changeLogEntry.getSequenceNumber()
+					+ " as changelog type "
+					+ changeLogEntry.getChangeLogType()
+					+ " is not handled", consumerName);
+		}
+	}
+
+	/**
+	 * Hand the entries from start up to the next one without a dispatch key
+	 * to the dispatch threads. Each entry's messages are collected rather
+	 * than sent, so they can be sent in sequence order by replayWrites.
+	 */
+	private List<Future<List<PendingWrite>>> dispatchSegment(List<ChangeLogEntry> changeLogEntryList,
+			int start, final Set<Long> coalesced) {
+		List<Future<List<PendingWrite>>> segment = new ArrayList<Future<List<PendingWrite>>>();
+		for (int i = start; i < changeLogEntryList.size(); i++) {
+			final ChangeLogEntry changeLogEntry = changeLogEntryList.get(i);
+			String key = dispatchKey(changeLogEntry);
+			if (key == null) {
+				break;
+			}
+			segment.add(dispatcher.submit(key, new Callable<List<PendingWrite>>() {
+				public List<PendingWrite> call() {
+					List<PendingWrite> writes = new ArrayList<PendingWrite>(2);
+					capturedWrites.set(writes);
+					try {
+						processEntry(changeLogEntry, changeLogEntry.getSequenceNumber(), coalesced);
+					} finally {
+						capturedWrites.remove();
+					}
+					return writes;
 				}
+			}));
+		}
+		return segment;
+	}
+
+	/**
+	 * Send the messages collected for an entry, or throw what its lookup threw.
+	 */
+	private void replayWrites(Future<List<PendingWrite>> resolution, long sequence) throws Exception {
+		List<PendingWrite> writes;
+		try {
+			writes = resolution.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
 			}
+			throw e;
 		}
+		for (PendingWrite write : writes) {
+			if (write.bulkOperation == null) {
+				writeMessage(write.message, write.jmsxGroupId, sequence);
+			} else {
+				writeMemberMessage(write.bulkOperation, write.jmsxGroupId, write.memberName,
+						write.message, sequence);
+			}
+		}
+	}
 
-		return currentId;
+	/**
+	 * The only group an entry reads and changes, or null if it may affect
+	 * other groups, such as stem, attribute, member and group rename entries.
+	 * Those run on their own once the entries before them are done.
+	 */
+	private static String dispatchKey(ChangeLogEntry changeLogEntry) {
+		if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)) {
+			return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name);
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+			if ("name".equals(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged))) {
+				return null;
+			}
+			return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name);
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)) {
+			return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.name);
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+			return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName);
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+			return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName);
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_ADD)) {
+			return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.ownerName);
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_DELETE)) {
+			return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.ownerName);
+		}
+		return null;
+	}
+
+	// Start, resize or stop the dispatch threads
+	private void initDispatcher(ConsumerProperties properties) {
+		int threads = properties.getDispatchThreads();
+		if (dispatcher != null && (threads <= 1 || dispatcher.getThreads() != threads)) {
+			dispatcher.shutdown();
+			dispatcher = null;
+		}
+		if (dispatcher == null && threads > 1) {
+			dispatcher = new KeyedDispatcher("dispatch-" + consumerName, threads);
+		}
+	}
+
+	// Wait for outstanding asynchronous sends and return the highest confirmed sequence
+	private long awaitWatermark() {
+		try {
+			if (!watermark.awaitCompletion(ASYNC_SEND_TIMEOUT)) {
+				LOG.error("'{}' - Timed out waiting for {} asynchronous sends", consumerName,
+						watermark.getInFlight());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (watermark.getFailure() != null) {
+			LOG.error("'{}' - Asynchronous send failed for sequence " + watermark.getFailedSequence()
+					+ ", confirmed through sequence " + watermark.getWatermark(), consumerName);
+		}
+		return watermark.getWatermark();
 	}
 	
 	
-	private static boolean groupOk (String groupName) {
+	private boolean groupOk (String groupName) {
 		LOG.debug ("'{}' - groupOk? (groupName: {})", consumerName, groupName);
 
 		// Check if group exists
-		Group group = GroupFinder.findByName(gs, groupName, false);
+		Group group = batchContext.findGroup(currentSession(), groupName);
 	    if (group == null) {
 			LOG.debug("Group " + groupName + " doesn\'t exist");
 			return false;
         }
+		return groupOk(group);
+	}
+
+	private boolean groupOk (Group group) {
+		String groupName = group.getName();
 		
-		if (syncedObjects.containsKey(groupName)) {
-			if (syncedObjects.get(groupName).equalsIgnoreCase("yes")) {
-				LOG.info ("{} - group {} is OK", consumerName, groupName);
-				return true;
-			} else if (syncedObjects.get(groupName).equalsIgnoreCase("no")) {
-				LOG.info ("{} - no go for group {}", consumerName, groupName);
-				return false;
-			}
+		EligibilityCache.Eligibility eligibility = eligibilityCache.get(groupName);
+		if (eligibility == null) {
+			boolean syncEnabled = isAttributeSetToYes (group, syncAttribute);
+			eligibility = eligibilityCache.put(groupName, syncEnabled,
+					syncEnabled && isAttributeSetToYes (group, allowLargeGroupsAttribute));
 		}
 		
-		
   	    // Check if the sync attribute exists and is "yes"
 		// plus membership size is less than maxMembers
-		if (isAttributeSetToYes (group, syncAttribute)) {
-			if (group.getMembers().size() <= maxMembers) {
-				LOG.debug("Group {} is okay to provision or add a member. Size is {}", groupName, group.getMembers().size()); 
-				syncedObjects.put(groupName, "yes");
-            	return true;
-			} else {
-				if (isAttributeSetToYes (group, allowLargeGroupsAttribute)) {
-					LOG.debug("Group {} is okay to provision or add a member due to allowLargeGroups attribute being set", groupName);
-					syncedObjects.put(groupName, "yes");
-					return true;
-				}
-				return false;
-			}
-		} else {
+		if (!eligibility.isSyncEnabled()) {
 			// The group doesn't have sync = yes
-			syncedObjects.put(groupName, "no");
 			LOG.debug ("{} - No go for group {}", consumerName, groupName);
 			return false;
 		}
+		if (eligibility.isLargeGroupsAllowed()) {
+			LOG.debug("Group {} is okay to provision or add a member due to allowLargeGroups attribute being set", groupName);
+			return true;
+		}
+		int size = groupSizes.getSize(group);
+		if (size <= maxMembers) {
+			LOG.debug("Group {} is okay to provision or add a member. Size is {}", groupName, size); 
+        	return true;
+		}
+		LOG.info ("{} - no go for group {}, size {} is over maxMembers", consumerName, groupName, size);
+		return false;
 	} 
 
 
@@ -563,7 +971,7 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		LOG.debug ("{} - shouldDelete (groupName: {})", consumerName, groupName);
 				
 		// Check if group exists
-		Group group = GroupFinder.findByName(gs, groupName, false);
+		Group group = batchContext.findGroup(currentSession(), groupName);
 	    if (group == null) {
 			LOG.debug("Group " + groupName + " doesn\'t exist");
 			return true;
@@ -571,8 +979,9 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
   	    // Check if the sync attribute exists and is "yes"
 		// plus membership size is less than maxMembers
 		if (isAttributeSetToYes (group, syncAttribute)) {
-			if (group.getMembers().size() <= maxMembers) {
-				LOG.debug("Group {} should remain. Size is {}", groupName, group.getMembers().size()); 
+			int size = groupSizes.getSize(group);
+			if (size <= maxMembers) {
+				LOG.debug("Group {} should remain. Size is {}", groupName, size); 
             	return false;
 			} else {
 				if (isAttributeSetToYes (group, allowLargeGroupsAttribute)) {
@@ -590,9 +999,13 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 
 
 
-	private static boolean isAttributeSetToYes(Group group, AttributeDefName attribute) {
+	private boolean isAttributeSetToYes(Group group, AttributeDefName attribute) {
 		LOG.debug (consumerName + " - isAttributeSetToYes (group: {}, attribute: {})", group, attribute);
 		
+		AttributeIndex index = getAttributeIndex(attribute);
+		if (index != null) {
+			return index.isSetToYes(group.getName());
+		}
 		if (group.getAttributeDelegate().retrieveAssignments(attribute).size() > 0) {
 			return group.getAttributeDelegate().retrieveAssignments(attribute)
 									.iterator().next().getValueDelegate().retrieveValuesString().contains("yes") ||
@@ -604,7 +1017,7 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 	}
 
 
-	private static boolean isAttributeSetToYesOnStem (Stem stem, AttributeDefName attribute) {
+	private boolean isAttributeSetToYesOnStem (Stem stem, AttributeDefName attribute) {
 		LOG.debug ("isAttributeSetToYes (stem: {}, attribute: {})", stem, attribute);
 
         final String stemName = stem.getName();
@@ -618,54 +1031,172 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		}
     }
 
-	private void deleteGroup (String groupName) {
+	// Forget cached eligibility for an attribute owner and everything below it
+	private void invalidateEligibility (Group group, Stem stem) {
+		if (group != null) {
+			eligibilityCache.invalidate(group.getName());
+		} else if (stem != null) {
+			if (stem.isRootStem()) {
+				eligibilityCache.clear();
+			} else {
+				eligibilityCache.invalidateStem(stem.getName());
+			}
+		}
+	}
+
+	private AttributeIndex getAttributeIndex (AttributeDefName attribute) {
+		if (syncIndex != null && syncIndex.getAttributeDefNameId().equals(attribute.getId())) {
+			return syncIndex;
+		}
+		if (allowLargeGroupsIndex != null && allowLargeGroupsIndex.getAttributeDefNameId().equals(attribute.getId())) {
+			return allowLargeGroupsIndex;
+		}
+		return null;
+	}
+
+	// Load the attribute indexes on first use, when the attributes change or when they are too old
+	private void initAttributeIndexes (ConsumerProperties properties) {
+		if (!properties.getUseAttributeIndex()) {
+			syncIndex = null;
+			allowLargeGroupsIndex = null;
+			return;
+		}
+		long maxAgeMillis = properties.getAttributeIndexMaxAge() * 1000L;
+		syncIndex = loadAttributeIndex(syncIndex, syncAttribute, maxAgeMillis);
+		allowLargeGroupsIndex = loadAttributeIndex(allowLargeGroupsIndex, allowLargeGroupsAttribute, maxAgeMillis);
+	}
+
+	private AttributeIndex loadAttributeIndex (AttributeIndex index, AttributeDefName attribute, long maxAgeMillis) {
+		if (index == null || !index.getAttributeDefNameId().equals(attribute.getId())) {
+			index = new AttributeIndex(attribute.getId());
+		} else if (maxAgeMillis <= 0 || System.currentTimeMillis() - index.getLoadedAt() <= maxAgeMillis) {
+			return index;
+		}
+		index.load(gs);
+		return index;
+	}
+
+	private void updateAttributeIndexes (ChangeLogEntry changeLogEntry) {
+		if (syncIndex != null) {
+			syncIndex.update(gs, changeLogEntry);
+		}
+		if (allowLargeGroupsIndex != null) {
+			allowLargeGroupsIndex.update(gs, changeLogEntry);
+		}
+	}
+
+	// Drop member counts the membership entries may have changed
+	private void updateGroupSizes (ChangeLogEntry changeLogEntry) {
+		if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+			if ("members".equals(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.fieldName))) {
+				groupSizes.membershipChanged(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName),
+						changeLogEntry.getSequenceNumber());
+			}
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+			if ("members".equals(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.fieldName))) {
+				groupSizes.membershipChanged(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName),
+						changeLogEntry.getSequenceNumber());
+			}
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+			if ("name".equals(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged))) {
+				groupSizes.invalidate(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue));
+			}
+		}
+	}
+
+	// Forget members whose subject or name may have changed
+	private void updateMemberCache (ChangeLogEntry changeLogEntry) {
+		if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBER_UPDATE)) {
+			memberCache.invalidate(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBER_UPDATE.id));
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBER_DELETE)) {
+			memberCache.invalidate(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBER_DELETE.id));
+		} else if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+			if ("name".equals(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged))) {
+				memberCache.invalidateName(changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyOldValue));
+			}
+		}
+	}
+
+	private void initMemberCache (ConsumerProperties properties) {
+		int size = properties.getMemberCacheSize();
+		long maxAgeMillis = properties.getMemberCacheMaxAge() * 1000L;
+		if (memberCache == null || memberCache.getMaxSize() != Math.max(1, size)
+				|| memberCache.getMaxAgeMillis() != maxAgeMillis) {
+			memberCache = new MemberCache(size, properties.getMemberCacheMaxAge());
+		}
+	}
+
+	/**
+	 * The member cache with its hit and miss counters.
+	 */
+	public MemberCache getMemberCache() {
+		return memberCache;
+	}
+
+	// The eligibility cache and member counts share their size and age limits
+	private void initEligibilityCache (ConsumerProperties properties) {
+		int size = properties.getEligibilityCacheSize();
+		long maxAgeMillis = properties.getEligibilityCacheMaxAge() * 1000L;
+		if (eligibilityCache == null || eligibilityCache.getMaxSize() != Math.max(1, size)
+				|| eligibilityCache.getMaxAgeMillis() != maxAgeMillis) {
+			eligibilityCache = new EligibilityCache(size, properties.getEligibilityCacheMaxAge());
+		}
+		if (groupSizes == null || groupSizes.getMaxSize() != Math.max(1, size)
+				|| groupSizes.getMaxAgeMillis() != maxAgeMillis) {
+			groupSizes = new GroupSizeCache(size, properties.getEligibilityCacheMaxAge());
+		}
+	}
+
+	/**
+	 * The eligibility cache with its hit, miss and eviction counters.
+	 */
+	public EligibilityCache getEligibilityCache() {
+		return eligibilityCache;
+	}
+
+	private void deleteGroup (String groupName, long sequence) {
 		LOG.debug ("{} - deleteGroup (groupName {})", consumerName, groupName);
 		if (groupName == null) {
 			LOG.error("{} - No group name for group delete change type. Skipping to next in sequence.", consumerName);
 		} else {
 			if (basicSyncType) {
-				String mesg = getGroupDeletedMessage(groupName);
-				writeMessage(mesg, groupName, currentId);
+				ProvisioningMessage mesg = getGroupDeletedMessage(groupName);
+				writeMessage(mesg, groupName, sequence);
 			}
 			if (iMOSyncType) {
-				String mesgIsMemberOf = getGroupDeletedIsMemberOfMessage(groupName);						
-				writeMessage(mesgIsMemberOf, groupName, currentId);
+				ProvisioningMessage mesgIsMemberOf = getGroupDeletedIsMemberOfMessage(groupName);						
+				writeMessage(mesgIsMemberOf, groupName, sequence);
 			}
-		syncedObjects.remove(groupName);
+		eligibilityCache.invalidate(groupName);
+		groupSizes.invalidate(groupName);
 		}
 	}
 	
-	private void removeAllMembers (String groupName) {
+	private void removeAllMembers (String groupName, long sequence) {
 		LOG.debug ("{} - removeAllMembers (groupName {})", consumerName, groupName);
 		if (groupName == null) {
 			LOG.error("{] - No group name for removeAllMembers change type. Skipping to next in sequence.", consumerName);
 		} else {
 			if (basicSyncType) {
-				String mesg = getRemoveAllMembersMessage(groupName);
-				writeMessage(mesg, groupName, currentId);
+				ProvisioningMessage mesg = getRemoveAllMembersMessage(groupName);
+				writeMessage(mesg, groupName, sequence);
 			}
 			if (iMOSyncType) {
-				String mesgIsMemberOf = getGroupDeletedIsMemberOfMessage(groupName);						
-				writeMessage(mesgIsMemberOf, groupName, currentId);
+				ProvisioningMessage mesgIsMemberOf = getGroupDeletedIsMemberOfMessage(groupName);						
+				writeMessage(mesgIsMemberOf, groupName, sequence);
 			}
 		}
 	}
-	private void syncGroup(Group group) {
+	private void syncGroup(Group group, long sequence) {
 		LOG.debug ("{} - syncGroup(group {})", consumerName, group);
 		if (group != null) {
 			LOG.debug("{} - Sync for group {}.", consumerName, group.getName());
 			
-			Set<Member> members = getAllGroupMembers(group);
-			
 			if (basicSyncType) {
-				String mesg = getGroupFullSyncMessage(group, members);
-				LOG.debug("{} - GroupFullSyncMesg: {}", consumerName, mesg);
-				writeMessage(mesg, group.getName(), currentId);
+				writeGroupFullSync(group, sequence, null);
 			}
 			if (iMOSyncType) {
-				String mesgIsMemberOf = getIsMemberOfFullSyncMessage(group, members);
-				LOG.debug("{} - isMemberOfSyncMessage: ", consumerName, mesgIsMemberOf);
-				writeMessage(mesgIsMemberOf, group.getName(), currentId);
+				writeIsMemberOfFullSync(group, sequence, null);
 			}
 
 			LOG.info("{} - Group Sync completed sucessfully for group "
@@ -676,349 +1207,290 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		}
 	}
 		
-	private static Set<Member> getAllGroupMembers(Group group) {
-		Set<Member> members = new HashSet<Member>();
+	// A full sync is one message, or chunks of fullSyncChunkSize members for larger groups
+	// With a digest, nothing is sent if the group is unchanged since it was last published
+	private boolean writeGroupFullSync(Group group, long sequence, GroupDigest digest) {
+		if (fullSyncChunkSize > 0 && groupSizes.getSize(group) > fullSyncChunkSize) {
+			return writeFullSyncChunks("fullSync", group, sequence, digest);
+		}
+		ProvisioningMessage mesg = getGroupFullSyncMessage(group, digest);
+		LOG.debug("{} - GroupFullSyncMesg: {}", consumerName, mesg);
+		if (digest != null) {
+			return writeIfChanged(mesg, group.getName(), sequence, digest);
+		}
+		writeMessage(mesg, group.getName(), sequence);
+		return true;
+	}
 
-		Set<Member> group_members = group.getMembers();
+	private boolean writeIsMemberOfFullSync(Group group, long sequence, GroupDigest digest) {
+		if (fullSyncChunkSize > 0 && groupSizes.getSize(group) > fullSyncChunkSize) {
+			return writeFullSyncChunks("fullSyncIsMemberOf", group, sequence, digest);
+		}
+		ProvisioningMessage mesgIsMemberOf = getIsMemberOfFullSyncMessage(group, digest);
+		LOG.debug("{} - isMemberOfSyncMessage: {}", consumerName, mesgIsMemberOf);
+		if (digest != null) {
+			return writeIfChanged(mesgIsMemberOf, group.getName(), sequence, digest);
+		}
+		writeMessage(mesgIsMemberOf, group.getName(), sequence);
+		return true;
+	}
 
-		for (Member member : group_members) {
-			String memberType = member.getSubjectType().toString();
-			if (memberType.equals("person")) {
-				members.add(member);
+	/**
+	 * Encode a full sync, which reads its members and takes the digest in
+	 * one pass, and send it only if the group changed since it was last published.
+	 */
+	private boolean writeIfChanged(ProvisioningMessage mesg, String groupName, long sequence,
+			GroupDigest digest) {
+		flushMembers();
+		EncodedMessage encoded;
+		try {
+			encoded = encodeMessage(mesg);
+		} catch (JMSException e) {
+			throw new RuntimeException("Message could not be encoded: " + mesg, e);
+		}
+		if (digestStore.isUnchanged(groupName, digest.toString())) {
+			return false;
+		}
+		sendMessage(encoded, groupName, sequence);
+		return true;
+	}
+
+	/**
+	 * Sends verifyGroup with the member count and membership digest of the
+	 * group but not the members, for the provisioner to compare against its own state.
+	 */
+	private void writeVerifyGroup(String syncOperation, Group group, long sequence) {
+		GroupDigest digest = new GroupDigest();
+		GroupMemberPager pager = new GroupMemberPager(group, memberPageSize);
+		List<String> page;
+		while ((page = pager.nextPage()) != null) {
+			for (String subjectId : page) {
+				digest.add(subjectId);
 			}
 		}
-		return members;
+		ProvisioningMessage mesg = new ProvisioningMessage("verifyGroup")
+				.field("syncOperation", syncOperation)
+				.field("name", group.getName())
+				.field("memberCount", String.valueOf(digest.getCount()))
+				.field("digest", digest.getMembershipDigest());
+		LOG.debug("{} - verifyGroupMesg: {}", consumerName, mesg);
+		writeMessage(mesg, group.getName(), sequence);
 	}
-		
-		
-	private String getRemoveAllMembersMessage(String groupName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>removeAllMembers</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-		} else {
-			mesg = "{\"operation\":\"removeAllMembers\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\"}";
+
+	// Null unless a standalone full sync is keeping digests
+	private GroupDigest newDigest(String syncOperation, Group group) {
+		if (digestStore == null) {
+			return null;
 		}
-		return mesg;
+		return new GroupDigest(syncOperation, group.getDescription(),
+				codecDescription, properties.getCompositeTarget());
 	}
 
-   
+	/**
+	 * Send a full sync as fullSyncBegin, fullSyncChunk messages of at most
+	 * fullSyncChunkSize members and fullSyncEnd with the chunk and member
+	 * counts. They share the group's JMSXGroupID so they arrive in order.
+	 *
+	 * With a digest, the member ids are first read in a pass of their own and
+	 * nothing is sent if the group is unchanged.
+	 */
+	private boolean writeFullSyncChunks(String syncOperation, Group group, long sequence,
+			GroupDigest digest) {
+		String groupName = group.getName();
+		if (digest != null && isUnchanged(group, digest)) {
+			return false;
+		}
+		writeMessage(new ProvisioningMessage("fullSyncBegin")
+				.field("syncOperation", syncOperation)
+				.field("description", group.getDescription())
+				.field("name", groupName), groupName, sequence);
+
+		// Only one chunk and one page of members are held at a time
+		int chunks = 0;
+		List<String> chunk = new ArrayList<String>();
+		GroupMemberPager pager = new GroupMemberPager(group, memberPageSize);
+		List<String> page;
+		while ((page = pager.nextPage()) != null) {
+			for (String member : page) {
+				chunk.add(member);
+				if (chunk.size() == fullSyncChunkSize) {
+					writeFullSyncChunk(syncOperation, groupName, chunks++, chunk, sequence);
+					chunk.clear();
+				}
+			}
+		}
+		if (!chunk.isEmpty()) {
+			writeFullSyncChunk(syncOperation, groupName, chunks++, chunk, sequence);
+		}
 
-	private String getGroupAddedMessage(String groupName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>createGroup</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-		} else {
-			mesg = "{\"operation\":\"createGroup\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\"}";
+		writeMessage(new ProvisioningMessage("fullSyncEnd")
+				.field("syncOperation", syncOperation)
+				.field("name", groupName)
+				.field("chunks", String.valueOf(chunks))
+				.field("memberCount", String.valueOf(pager.getCount())), groupName, sequence);
+		LOG.debug("{} - Sent {} of group " + groupName + " in {} chunks", new Object[] {
+				consumerName, syncOperation, chunks });
+		return true;
+	}
+
+	// Digest the member ids in a pass of their own, before any chunk is sent
+	private boolean isUnchanged(Group group, GroupDigest digest) {
+		GroupMemberPager pager = new GroupMemberPager(group, memberPageSize);
+		List<String> page;
+		while ((page = pager.nextPage()) != null) {
+			for (String subjectId : page) {
+				digest.add(subjectId);
+			}
 		}
-		return mesg;
+		return digestStore.isUnchanged(group.getName(), digest.toString());
 	}
 
-	private String getGroupDeletedMessage(String groupName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>deleteGroup</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-		} else {
-			mesg = "{\"operation\":\"deleteGroup\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\"}";
+	private void writeFullSyncChunk(String syncOperation, String groupName, int chunk,
+			List<String> memberList, long sequence) {
+		ProvisioningMessage message = new ProvisioningMessage("fullSyncChunk")
+				.field("syncOperation", syncOperation)
+				.field("name", groupName)
+				.field("chunk", String.valueOf(chunk))
+				.beginList("memberList");
+		for (String member : memberList) {
+			message.member(member);
 		}
-		return mesg;
+		writeMessage(message, groupName, sequence);
+	}
+
+		
+	private ProvisioningMessage getRemoveAllMembersMessage(String groupName) {
+		return new ProvisioningMessage("removeAllMembers")
+				.field("name", groupName);
+	}
+
+   
+
+	private ProvisioningMessage getGroupAddedMessage(String groupName) {
+		return new ProvisioningMessage("createGroup")
+				.field("name", groupName);
+	}
+
+	private ProvisioningMessage getGroupDeletedMessage(String groupName) {
+		return new ProvisioningMessage("deleteGroup")
+				.field("name", groupName);
 	}
 	
 	
-	private String getStemDeletedMessage(String stemName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>deleteStem</operation>";
-			mesg = mesg + "<name><![CDATA[" + stemName + "]]></name>";
-		} else {
-			mesg = "{\"operation\":\"deleteStem\",";
-			mesg = mesg + "\"name\":\"" + stemName + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getStemDeletedMessage(String stemName) {
+		return new ProvisioningMessage("deleteStem")
+				.field("name", stemName);
 	}
 	
 
-	private String getGroupDeletedIsMemberOfMessage(String groupName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>deleteGroupIsMemberOf</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-		} else {
-			mesg = "{\"operation\":\"deleteGroupIsMemberOf\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getGroupDeletedIsMemberOfMessage(String groupName) {
+		return new ProvisioningMessage("deleteGroupIsMemberOf")
+				.field("name", groupName);
 	}
 
-	private String getGroupUpdatedMessage(String groupName,
+	private ProvisioningMessage getGroupUpdatedMessage(String groupName,
 			String groupDescription, String groupOldDescription) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>updateGroup</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<description><![CDATA[" + groupDescription
-					+ "]]></description>";
-			mesg = mesg + "<olddescription><![CDATA[" + groupOldDescription
-				+ "]]></olddescription>";
-		} else {
-			mesg = "{\"operation\":\"updateGroup\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"description\":\"" + groupDescription + "\",";
-			mesg = mesg + "\"olddescription\":\"" + groupOldDescription + "\"}";
-		}
-		return mesg;
+		return new ProvisioningMessage("updateGroup")
+				.field("name", groupName)
+				.field("description", groupDescription)
+				.field("olddescription", groupOldDescription);
 	}
 
-	private String getGroupRenamedMessage(String groupName, String groupOldName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>renameGroup</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<oldname><![CDATA[" + groupOldName + "]]></oldname>";
-		} else {
-			mesg = "{\"operation\":\"renameGroup\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"oldname\":\"" + groupOldName + "\"}";
-		}
-		return mesg;
-	}
-	private String getStemRenamedMessage(String stemName, String stemOldName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>renameStem</operation>";
-			mesg = mesg + "<name><![CDATA[" + stemName + "]]></name>";
-			mesg = mesg + "<oldname><![CDATA[" + stemOldName + "]]></oldname>";
-		} else {
-			mesg = "{\"operation\":\"renameStem\",";
-			mesg = mesg + "\"name\":\"" + stemName + "\",";
-			mesg = mesg + "\"oldname\":\"" + stemOldName + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getGroupRenamedMessage(String groupName, String groupOldName) {
+		return new ProvisioningMessage("renameGroup")
+				.field("name", groupName)
+				.field("oldname", groupOldName);
+	}
+	private ProvisioningMessage getStemRenamedMessage(String stemName, String stemOldName) {
+		return new ProvisioningMessage("renameStem")
+				.field("name", stemName)
+				.field("oldname", stemOldName);
 	}
 
-	private String getGroupIsMemberOfRenamedMessage(String groupName, String groupOldName) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>renameGroupIsMemberOf</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<oldname><![CDATA[" + groupOldName + "]]></oldname>";
-		} else {
-			mesg = "{\"operation\":\"renameGroupIsMemberOf\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"oldname\":\"" + groupOldName + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getGroupIsMemberOfRenamedMessage(String groupName, String groupOldName) {
+		return new ProvisioningMessage("renameGroupIsMemberOf")
+				.field("name", groupName)
+				.field("oldname", groupOldName);
 	}
 
-	private String getGroupMemberAddedMessage(String groupName, String uid) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>addMember</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<memberId><![CDATA[" + uid + "]]></memberId>";
-		} else {
-			mesg = "{\"operation\":\"addMember\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"memberId\":\"" + uid + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getGroupMemberAddedMessage(String groupName, String uid) {
+		return new ProvisioningMessage("addMember")
+				.field("name", groupName)
+				.field("memberId", uid);
 	}
 
-	private String getIsMemberOfAddedMessage(String groupName, String uid) {
-		String mesg = "";
-		if (useXmlMessageFormat) {		
-			mesg = "<operation>addIsMemberOf</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<memberId><![CDATA[" + uid + "]]></memberId>";
-		} else {
-			mesg = "{\"operation\":\"addIsMemberOf\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"memberId\":\"" + uid + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getIsMemberOfAddedMessage(String groupName, String uid) {
+		return new ProvisioningMessage("addIsMemberOf")
+				.field("name", groupName)
+				.field("memberId", uid);
 	}
 
-	private String getGroupMemberDeletedMessage(String groupName, String uid) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>removeMember</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<memberId><![CDATA[" + uid + "]]></memberId>";
-		} else {
-			mesg = "{\"operation\":\"removeMember\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"memberId\":\"" + uid + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getGroupMemberDeletedMessage(String groupName, String uid) {
+		return new ProvisioningMessage("removeMember")
+				.field("name", groupName)
+				.field("memberId", uid);
 	}
 
-	private String getIsMemberOfDeletedMessage(String groupName, String uid) {
-		String mesg = "";
-		if (useXmlMessageFormat) {		
-			mesg = "<operation>removeIsMemberOf</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<memberId><![CDATA[" + uid + "]]></memberId>";
-		} else {
-			mesg = "{\"operation\":\"removeIsMemberOf\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"memberId\":\"" + uid + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getIsMemberOfDeletedMessage(String groupName, String uid) {
+		return new ProvisioningMessage("removeIsMemberOf")
+				.field("name", groupName)
+				.field("memberId", uid);
 	}
 
-	private String getPrivilegeAddedMessage(String groupName, String uid) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>addPrivilege</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<memberId><![CDATA[" + uid + "]]></memberId>";
-		} else {
-			mesg = "{\"operation\":\"addPrivilege\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"memberId\":\"" + uid + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getBulkMemberMessage(String operation, String groupName,
+			List<String> uids) {
+		ProvisioningMessage message = new ProvisioningMessage(operation)
+				.field("name", groupName)
+				.beginList("memberList");
+		return message.members(uids);
 	}
 
-	private String getPrivilegeDeletedMessage(String groupName, String uid) {
-		String mesg = "";
-		if (useXmlMessageFormat) {
-			mesg = "<operation>removePrivilege</operation>";
-			mesg = mesg + "<name><![CDATA[" + groupName + "]]></name>";
-			mesg = mesg + "<memberId><![CDATA[" + uid + "]]></memberId>";
-		} else {
-			mesg = "{\"operation\":\"removePrivilege\",";
-			mesg = mesg + "\"name\":\"" + groupName + "\",";
-			mesg = mesg + "\"memberId\":\"" + uid + "\"}";
-		}
-		return mesg;
+	private ProvisioningMessage getPrivilegeAddedMessage(String groupName, String uid) {
+		return new ProvisioningMessage("addPrivilege")
+				.field("name", groupName)
+				.field("memberId", uid);
 	}
 
-	private static String getGroupFullSyncMessage(Group group,
-			Set<Member> members) {
-		String mesg = "";
-		JSONObject jObj = new JSONObject();
-		JSONArray jList = new JSONArray();
-		
-		if (useXmlMessageFormat) {
-			mesg = "<operation>fullSync</operation>";
-			mesg = mesg + "<description><![CDATA[" + group.getDescription()
-					+ "]]></description>";
-			mesg = mesg + "<name><![CDATA[" + group.getName() + "]]></name>";
-			mesg = mesg + "<memberList>";
-
-			for (Member member : members) {
-				if (member.getSubjectType().toString().equals("group")) {
-					mesg = mesg + "<member><![CDATA[" + member.getName()
-							+ "]]></member>";
-				} else {
-					mesg = mesg + "<member><![CDATA[" + member.getSubjectId()
-							+ "]]></member>";
-				}
-			}
-			mesg = mesg + "</memberList>";
-			
-		} else {
-			jObj.put ("operation", "fullSync");
-			jObj.put ("description", group.getDescription());
-			jObj.put ("name", group.getName());
-			
-			for (Member member : members) {
-				if (member.getSubjectType().toString().equals("group")) {
-					jList.add (member.getName());
-				} else {
-					jList.add (member.getSubjectId());
-				}
-			}
-			jObj.put ("memberList", jList);
-			mesg = jObj.toJSONString();	
-		}
-		return mesg;
+	private ProvisioningMessage getPrivilegeDeletedMessage(String groupName, String uid) {
+		return new ProvisioningMessage("removePrivilege")
+				.field("name", groupName)
+				.field("memberId", uid);
 	}
 
-	private static String getGroupPrivilegeFullSyncMessage(Group group,
-			Set<Subject> subjects) {
-		String mesg = "";
-		JSONObject jObj = new JSONObject();
-		JSONArray jList = new JSONArray();
-		
-		if (useXmlMessageFormat) {		
-			mesg = "<operation>fullSyncPrivilege</operation>";
-			mesg = mesg + "<description><![CDATA[" + group.getDescription()
-					+ "]]></description>";
-			mesg = mesg + "<name><![CDATA[" + group.getName() + "]]></name>";
-			mesg = mesg + "<memberList>";
-
-			for (Subject subject : subjects) {
-				if (subject.getSourceId().equals("ldap")){
-					mesg = mesg + "<member><![CDATA[" + subject.getId()
-								+ "]]></member>";
-				} else {
-					mesg = mesg + "<member><![CDATA[" + subject.getName()
-								+ "]]></member>";
-				}
-			}
-			mesg = mesg + "</memberList>";
-		} else {
-			jObj.put ("operation", "fullSyncPrivilege");
-			jObj.put ("description", group.getDescription());
-			jObj.put ("name", group.getName());
+	private ProvisioningMessage getGroupFullSyncMessage(Group group, GroupDigest digest) {
+		// The members are paged in as the message is encoded
+		return new ProvisioningMessage("fullSync")
+				.field("description", group.getDescription())
+				.field("name", group.getName())
+				.beginList("memberList", new GroupMemberPager.Members(group, memberPageSize, digest));
+	}
 
-			for (Subject subject : subjects) {
-				if (subject.getSourceId().equals("ldap")){
-					jList.add (subject.getId());
-				} else {
-					jList.add (subject.getName());
-				}
+	private ProvisioningMessage getGroupPrivilegeFullSyncMessage(Group group,
+			Set<Subject> subjects) {
+		ProvisioningMessage message = new ProvisioningMessage("fullSyncPrivilege")
+				.field("description", group.getDescription())
+				.field("name", group.getName())
+				.beginList("memberList");
+
+		for (Subject subject : subjects) {
+			if (subject.getSourceId().equals("ldap")){
+				message.member(subject.getId());
+			} else {
+				message.member(subject.getName());
 			}
-			jObj.put ("memberList", jList);
-			mesg = jObj.toJSONString();	
 		}
-		
-		return mesg;
+		return message;
 	}
 
 
-	private static String getIsMemberOfFullSyncMessage(Group group,
-			Set<Member> members) {
-		String mesg = "";
-		JSONObject jObj = new JSONObject();
-		JSONArray jList = new JSONArray();
-		
-		if (useXmlMessageFormat) {		
-			mesg = "<operation>fullSyncIsMemberOf</operation>";
-			mesg = mesg + "<name><![CDATA[" + group.getName() + "]]></name>";
-			mesg = mesg + "<memberList>";
-
-			for (Member member : members) {
-				if (member.getSubjectType().toString().equals("person")) {
-					mesg = mesg + "<member><![CDATA[" + member.getSubjectId()
-							+ "]]></member>";
-				}
-			}
-			mesg = mesg + "</memberList>";
-		} else {
-			jObj.put ("operation", "fullSyncIsMemberOf");
-			jObj.put ("name", group.getName());
-			
-			for (Member member : members) {
-				if (member.getSubjectType().toString().equals("person")) {
-					jList.add (member.getSubjectId());
-				}
-			}
-			jObj.put ("memberList", jList);
-			mesg = jObj.toJSONString();	
-		}
-		return mesg;
+	private ProvisioningMessage getIsMemberOfFullSyncMessage(Group group, GroupDigest digest) {
+		return new ProvisioningMessage("fullSyncIsMemberOf")
+				.field("name", group.getName())
+				.beginList("memberList", new GroupMemberPager.Members(group, memberPageSize, digest));
 	}
 
 
-	static public String getGroupAttribute(String groupName,
+	public String getGroupAttribute(String groupName,
 			String attributeName, Group group) {
 		String result;
 
@@ -1047,83 +1519,303 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		return result;
 	}
 
-	private Member getMemberFromId(String memberId) {
-		Member member;
-		member = MemberFinder.findByUuid(gs, memberId, false);
-		return member;
+	private MemberCache.CachedMember getMemberFromId(String memberId) {
+		return memberCache.get(currentSession(), memberId);
+	}
+
+	// A dispatch lane's own session, or gs on the loader thread
+	private GrouperSession currentSession() {
+		GrouperSession laneSession = KeyedDispatcher.laneSession();
+		return laneSession != null ? laneSession : gs;
+	}
+
+	private void writeMessage(ProvisioningMessage mesg, String jmsxGroupId,
+			long sequence) {
+		List<PendingWrite> captured = capturedWrites.get();
+		if (captured != null) {
+			captured.add(new PendingWrite(null, jmsxGroupId, null, mesg));
+			return;
+		}
+		// Buffered member changes go first to keep the order
+		flushMembers();
+		sendMessage(mesg, jmsxGroupId, sequence);
+	}
+
+	/**
+	 * Write a change to one member of a group. With memberBulkSize above 1,
+	 * consecutive changes of the same kind to the same group are buffered and
+	 * sent as one bulk message.
+	 */
+	private void writeMemberMessage(String bulkOperation, String groupName,
+			String memberName, ProvisioningMessage mesg, long sequence) {
+		List<PendingWrite> captured = capturedWrites.get();
+		if (captured != null) {
+			captured.add(new PendingWrite(bulkOperation, groupName, memberName, mesg));
+			return;
+		}
+		if (memberBulkSize <= 1) {
+			writeMessage(mesg, groupName, sequence);
+			return;
+		}
+		if (!memberBuffer.accepts(bulkOperation, groupName)) {
+			flushMembers();
+		}
+		if (memberBuffer.add(bulkOperation, groupName, memberName, mesg, sequence) && asyncSend) {
+			// Keep the watermark from passing a sequence that hasn't been sent
+			watermark.hold(sequence);
+		}
+		if (memberBuffer.size() >= memberBulkSize) {
+			flushMembers();
+		}
+	}
+
+	private void flushMembers() {
+		if (memberBuffer.isEmpty()) {
+			return;
+		}
+		ProvisioningMessage mesg = memberBuffer.size() == 1 ? memberBuffer.getFirstMessage()
+				: getBulkMemberMessage(memberBuffer.getOperation(), memberBuffer.getGroupName(),
+						memberBuffer.getMembers());
+		// Tracked against the first sequence, which holds back all later ones
+		sendMessage(mesg, memberBuffer.getGroupName(), memberBuffer.getFirstSequence());
+		if (asyncSend) {
+			for (Long sequence : memberBuffer.getSequences()) {
+				watermark.release(sequence);
+			}
+		}
+		memberBuffer.clear();
 	}
 
-	private static void writeMessage(String mesg, String jmsxGroupId,
+	private void sendMessage(ProvisioningMessage mesg, String jmsxGroupId,
 			long sequence) {
-		String result = addToMessageQueue(mesg, jmsxGroupId, sequence);
+		checkSent(mesg, addToMessageQueue(mesg, jmsxGroupId, sequence), sequence);
+	}
+
+	private void sendMessage(EncodedMessage encoded, String jmsxGroupId, long sequence) {
+		checkSent(encoded.message, addToMessageQueue(encoded, jmsxGroupId, sequence), sequence);
+	}
+
+	private void checkSent(ProvisioningMessage mesg, String result, long sequence) {
 		if (result.equals("OK")) {
-			LOG.info("'{}' - Message sent OK for squence: " + sequence + " Message: "
-					+ mesg, consumerName);
+			if (workerPublisher.get() == null) {
+				pendingMessages++;
+			}
+			LOG.info("'{}' - Message {} for squence: {} Message: {}", new Object[] {
+					consumerName, asyncSend ? "queued" : "sent OK", sequence, mesg });
 		} else {
 			throw new RuntimeException("Message send failed with result: "
 					+ result + " Message: " + mesg);
 		}
 	}
 
-	public static String addToMessageQueue(String grouperMessage,
+	public String addToMessageQueue(ProvisioningMessage grouperMessage,
 			String jmsxGroupId, long sequence) {
+		EncodedMessage encoded;
+		try {
+			encoded = encodeMessage(grouperMessage);
+		} catch (Exception e) {
+			return "Failed: " + e;
+		}
+		return addToMessageQueue(encoded, jmsxGroupId, sequence);
+	}
 
-		Destination destination;
-		Session session;
-		MessageProducer producer;
-		TextMessage message;
+	/**
+	 * Encode a message for the outbox, or once per codec for the targets.
+	 * Members read from a source are read here.
+	 */
+	private EncodedMessage encodeMessage(ProvisioningMessage message) throws JMSException {
+		if (outbox != null && workerPublisher.get() == null) {
+			// Kept in the binary format and encoded for the targets when published
+			return new EncodedMessage(message, BinaryMessageCodec.INSTANCE.encodeBytes(message), null, null);
+		}
+		List<String> targets = properties.getTargetList();
+		if (compositeFanOut && targets.size() > 1) {
+			// One send to a composite queue; the broker delivers a copy to each target
+			targets = Collections.singletonList(properties.getCompositeTarget());
+		}
+		return new EncodedMessage(message, null, targets,
+				preparePayloads(currentPublisher(), targets, message));
+	}
 
-		String result = "";
-		session = null;
-		producer = null;
+	private String addToMessageQueue(EncodedMessage encoded, String jmsxGroupId, long sequence) {
+		if (encoded.outboxRecord != null) {
+			return outbox.append(jmsxGroupId, encoded.outboxRecord) ? "OK"
+					: "Failed: outbox " + outbox.getFile() + " is full";
+		}
 
+		String result = "";
+		MessagePublisher publisher = currentPublisher();
+		List<String> targets = encoded.targets;
+		List<MessagePublisher.Payload> payloads = encoded.payloads;
+		String targetQueue = null;
 
 		try {
-			String delims = "[,]";
-			String targets = ConsumerProperties.getTargets();
-			String[] target = targets.split(delims);
+			if (parallelFanOut && targets.size() > 1) {
+				// Send to every target at once; failures are reported per target
+				AsyncCallback[] callbacks = null;
+				if (asyncSend) {
+					callbacks = new AsyncCallback[targets.size()];
+					for (int i = 0; i < callbacks.length; i++) {
+						callbacks[i] = watermark.acquire(sequence);
+					}
+				}
+				publisher.getFanOut().publish(targets, payloads, jmsxGroupId, callbacks);
+			} else {
+				for (int i = 0; i < targets.size(); i++) {
+					targetQueue = targets.get(i);
+					LOG.debug("The target queue is: {}", targetQueue);
+
+					// Queue the message on the cached producer for this target
+					if (asyncSend) {
+						AsyncCallback callback = watermark.acquire(sequence);
+						try {
+							publisher.sendAsync(targetQueue, payloads.get(i), jmsxGroupId, callback);
+						} catch (JMSException e) {
+							callback.onException(e);
+							throw e;
+						}
+					} else {
+						publisher.send(targetQueue, payloads.get(i), jmsxGroupId);
+					}
+				}
+			}
+		} catch (TargetFanOut.FanOutException e) {
+			result = "Failed: " + e.getMessage();
+		} catch (Exception e) {
+			result = "Failed: " + (targetQueue != null ? "target " + targetQueue + ": " : "") + e;
+		}
 
-			for (int i = 0; i < target.length; i++) {
-				String targetQueue = target[i];
-				LOG.debug("The target queue is: {}", targetQueue);
-				session = connection.createSession(false,
-						Session.AUTO_ACKNOWLEDGE);
-				destination = session.createQueue(targetQueue);
-				producer = session.createProducer(destination);
-				producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+		if (result.equals(""))
+			result = "OK";
 
-				// Queue the message
-				message = session.createTextMessage(grouperMessage);
-				message.setStringProperty("JMSXGroupID", jmsxGroupId);
-				producer.send(message);
+		return result;
+	}
 
+	/**
+	 * The body for each target, encoded and compressed once per codec
+	 * whatever the number of targets.
+	 */
+	private List<MessagePublisher.Payload> preparePayloads(MessagePublisher publisher,
+			List<String> targets, ProvisioningMessage message) throws JMSException {
+		List<MessagePublisher.Payload> payloads = new ArrayList<MessagePublisher.Payload>(targets.size());
+		Map<MessageCodec, MessagePublisher.Payload> encoded = new HashMap<MessageCodec, MessagePublisher.Payload>(4);
+		for (String target : targets) {
+			MessageCodec codec = targetCodecs.get(target);
+			if (codec == null) {
+				codec = defaultCodec;
 			}
-		} catch (Exception e) {
-			result = "Failed: " + e;
+			MessagePublisher.Payload payload = encoded.get(codec);
+			if (payload == null) {
+				payload = publisher.prepare(message, codec);
+				encoded.put(codec, payload);
+			}
+			payloads.add(payload);
+		}
+		return payloads;
+	}
+
+	/**
+	 * Pick the codec for each target from messageFormat and
+	 * targetMessageFormats. Without messageFormat, useXmlMessageFormat
+	 * chooses between xml and json as before.
+	 */
+	private void initCodecs(ConsumerProperties properties) {
+		String format = properties.getMessageFormat();
+		MessageCodec codec = MessageCodecs.forFormat(format.length() > 0 ? format
+				: useXmlMessageFormat ? "xml" : "json");
+		StringBuilder description = new StringBuilder(codec.getFormat());
+		Map<String, MessageCodec> codecs = new HashMap<String, MessageCodec>();
+		for (Map.Entry<String, String> targetFormat : properties.getTargetMessageFormats().entrySet()) {
+			codecs.put(targetFormat.getKey(), MessageCodecs.forFormat(targetFormat.getValue()));
+			description.append(' ').append(targetFormat.getKey()).append('=').append(targetFormat.getValue());
+		}
+		if (compositeFanOut && !codecs.isEmpty()) {
+			LOG.warn("'{}' - targetMessageFormats is ignored with composite fan out, every target gets {}",
+					consumerName, codec.getFormat());
+		}
+		defaultCodec = codec;
+		targetCodecs = codecs;
+		codecDescription = description.toString();
+	}
+
+	private void commitMessages() throws Exception {
+		if (pendingMessages > 0) {
+			publisher.commit();
+			LOG.debug("'{}' - Committed {} messages", consumerName, pendingMessages);
+			pendingMessages = 0;
 		}
+	}
 
-		// Close everything
-		if (producer != null) {
+	// Full syncs commit once per group so a failure only loses that group
+	private boolean commitFullSync(String groupName) {
+		if (transacted) {
+			MessagePublisher worker = workerPublisher.get();
 			try {
-				producer.close();
+				if (worker != null) {
+					worker.commit();
+				} else {
+					commitMessages();
+				}
 			} catch (Exception e) {
-				result = "Error closing ActiveMQ producer" + sequence
-						+ " Error message: " + e.getMessage();
+				LOG.error("Error committing full sync for group " + groupName, e);
+				if (worker != null) {
+					worker.rollback();
+				} else {
+					publisher.rollback();
+					pendingMessages = 0;
+				}
+				return false;
 			}
 		}
-		if (session != null) {
-			try {
-				session.close();
-			} catch (Exception e) {
-				result = "Error closing ActiveMQ session" + sequence
-						+ " Error message: " + e.getMessage();
+		return true;
+	}
+
+	/**
+	 * Open the outbox and start its drainer, or close it when outboxFile has
+	 * been cleared. A new disk budget applies when the file changes. The old
+	 * outbox has to be empty before it's closed, so a change is refused until
+	 * its drainer has published everything in it.
+	 */
+	private void initOutbox(ConsumerProperties properties) throws IOException {
+		String outboxFile = properties.getOutboxFile();
+		if (outbox != null && !outbox.getFile().getPath().equals(outboxFile)) {
+			long pending = outbox.getPendingBytes();
+			if (pending > 0) {
+				throw new IllegalArgumentException("Outbox " + outbox.getFile() + " still has " + pending
+						+ " bytes to publish, outboxFile can be changed once they are sent.");
 			}
+			LOG.info("'{}' - Closing outbox {} with {} bytes to publish", new Object[] {
+					consumerName, outbox.getFile(), outbox.getPendingBytes() });
+			outbox.close();
+			outboxSender.close();
+			outbox = null;
+			outboxSender = null;
+		}
+		if (outbox == null && outboxFile.length() > 0) {
+			outbox = new OutboxJournal(new File(outboxFile), properties.getOutboxMaxMegabytes() * 1024L * 1024L);
+			outboxSender = new OutboxSender(properties);
+			outbox.startDrainer(outboxSender);
+		} else if (outboxSender != null) {
+			outboxSender.setSettings(properties);
 		}
+	}
 
-		if (result.equals(""))
-			result = "OK";
+	// Drop what a failed full sync of one group has sent in its transaction
+	private void rollbackFullSync() {
+		if (transacted) {
+			MessagePublisher worker = workerPublisher.get();
+			if (worker != null) {
+				worker.rollback();
+			} else {
+				publisher.rollback();
+				pendingMessages = 0;
+			}
+		}
+	}
 
-		return result;
+	private MessagePublisher currentPublisher() {
+		MessagePublisher worker = workerPublisher.get();
+		return worker != null ? worker : publisher;
 	}
 
 
@@ -1147,7 +1839,7 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 
        if (args.length == 0 ) {
 		   System.out.printf("Change Log Consumer Name must be provided\n");
-		   System.out.printf("LDAP-AD-FullSync.sh consumerName \n");
+		   System.out.printf("LDAP-AD-FullSync.sh consumerName [runId]\n");
 
 
 		   System.exit(-1);
@@ -1160,58 +1852,17 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 
 		try {
 			// Get a new consumer
-			//ConsumerMain consumer = new ConsumerMain();
+			ConsumerMain consumer = new ConsumerMain();
 		
 			LOG.debug ("After new ConsumerMain");
 			
-			//gs = GrouperSession.start(SubjectFinder.findRootSubject());
-			gs = GrouperSession.startRootSession();
-
-			
-			LOG.debug ("After Grouper Session");
-			
-			
-			// Setup the properties
-			ConsumerProperties properties = new ConsumerProperties(args[0]);
-
-			brokerURL = properties.getBrokerUrl();
-			
-			username = properties.getUsername();
-			password = properties.getPassword();
-			maxMembers = properties.getMaxMembers();
-			// This is the attribute to use to know if we should send this change to the queue.
-			syncAttribute = AttributeDefNameFinder.findByName( properties.getSyncAttribute(), true);
-			// This is the attribute to use to know if we should allow large groups over maxMembers
-			allowLargeGroupsAttribute = AttributeDefNameFinder.findByName( properties.getAllowLargeGroupsAttribute(), true);
-			// Should we send this to the basic type queue   equalsIgnoreCase
-			basicSyncType = properties.getSyncType().equalsIgnoreCase("basic") ? true : false;
-			// Should we send this to the isMemberOf type queue.
-			iMOSyncType = properties.getSyncType().equalsIgnoreCase("isMemberOf") ? true : false;
-			// What outgoing message format shall we use. xml or json
-			useXmlMessageFormat = properties.getUseXmlMessageFormat();	
-			
-			syncedObjects = new HashMap<String, String>();	
-			
-			
-			LOG.debug ("After properties");	
-			
-			// Create a Connection Factory and connection
-			connectionFactory = new ActiveMQConnectionFactory(username,
-					password, brokerURL);
-			connection = connectionFactory.createConnection();
-			connection.start();
-			
-			LOG.debug ("After ActiveMQ connection");
-			
-			
-
 			// Now let's sync the groups
-			syncAllGroups();
+			// Pass the run id of an interrupted full sync to resume it
+			String runId = args.length > 1 ? args[1] : String.valueOf(System.currentTimeMillis());
+			consumer.fullSync(args[0], runId);
 			
-			if (connection != null){
-				connection.close();
-				LOG.error("Closing ActiveMQ connection");
-			}
+			MessagePublisher.closeAll();
+			LOG.info("Closing ActiveMQ connection");
 
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -1221,54 +1872,258 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 
 	}
 
-	private static void syncAllGroups() {
+	/**
+	 * Full sync every group under the fullSyncRootStems, for the standalone full sync.
+	 */
+	private void fullSync(String consumerName, String runId) throws Exception {
+		this.consumerName = consumerName;
+		//gs = GrouperSession.start(SubjectFinder.findRootSubject());
+		gs = GrouperSession.startRootSession();
+
+		
+		LOG.debug ("After Grouper Session");
+		
+		
+		// Setup the properties
+		properties = new ConsumerProperties(consumerName);
+
+		brokerURL = properties.getBrokerUrl();
+		
+		username = properties.getUsername();
+		password = properties.getPassword();
+		maxMembers = properties.getMaxMembers();
+		// This is the attribute to use to know if we should send this change to the queue.
+		syncAttribute = AttributeDefNameFinder.findByName( properties.getSyncAttribute(), true);
+		// This is the attribute to use to know if we should allow large groups over maxMembers
+		allowLargeGroupsAttribute = AttributeDefNameFinder.findByName( properties.getAllowLargeGroupsAttribute(), true);
+		// Should we send this to the basic type queue   equalsIgnoreCase
+		basicSyncType = properties.getSyncType().equalsIgnoreCase("basic") ? true : false;
+		// Should we send this to the isMemberOf type queue.
+		iMOSyncType = properties.getSyncType().equalsIgnoreCase("isMemberOf") ? true : false;
+		// What outgoing message format shall we use. xml or json
+		useXmlMessageFormat = properties.getUseXmlMessageFormat();	
+		
+		initEligibilityCache(properties);
+		initMemberCache(properties);
+		initAttributeIndexes(properties);
+		batchContext = new BatchContext();
+		fullSyncChunkSize = properties.getFullSyncChunkSize();
+		memberPageSize = properties.getMemberPageSize();
+		
+		transacted = properties.getTransacted();
+		transactionSize = properties.getTransactionSize();
+		parallelFanOut = properties.getFanOutMode().equalsIgnoreCase("parallel") ? true : false;
+		compositeFanOut = properties.getFanOutMode().equalsIgnoreCase("composite") ? true : false;
+		initCodecs(properties);
+		
+		
+		LOG.debug ("After properties");	
+		
+		// Get the publisher and its connection
+		publisher = MessagePublisher.getInstance(consumerName, brokerURL, username, password);
+		publisher.setTransacted(transacted);
+		publisher.setCompressThreshold(properties.getCompressThreshold());
+		publisher.connect();
+		
+		LOG.debug ("After ActiveMQ connection");
+		
+		syncAllGroups(properties, runId);
+	}
+
+	private void syncAllGroups(ConsumerProperties properties, String runId)
+			throws InterruptedException, IOException {
 		LOG.debug("In syncAllGroups");
 		//Set<Group> groups = GroupFinder.findAllByType(session,
 		//		GroupTypeFinder.find("base", false));
 		//Set<Group> groups = GroupFinder.findGroups();
-		Stem stem = StemFinder.findByName(gs, "edu:berkeley");
-		Set<Group> groups = stem.getChildGroups(Scope.SUB);
+		FullSyncEngine engine = new FullSyncEngine(properties.getFullSyncThreads(),
+				properties.getFullSyncQueueSize(), properties.getFullSyncProgressInterval());
+		if (properties.getFullSyncCheckpointFile().length() > 0) {
+			engine.setCheckpoint(new FullSyncCheckpoint(new File(properties.getFullSyncCheckpointFile()),
+					runId, properties.getFullSyncCheckpointInterval()));
+		}
+		fullSyncVerify = properties.getFullSyncVerify();
+		if (properties.getFullSyncDigestFile().length() > 0 && !fullSyncVerify) {
+			digestStore = new DigestStore(new File(properties.getFullSyncDigestFile()),
+					properties.getFullSyncForce());
+		}
+		LOG.info("Full sync run id {}", runId);
+		engine.run(gs, properties.getFullSyncRootStems(), new FullSyncEngine.WorkerFactory() {
+			public FullSyncEngine.Worker newWorker() {
+				return new FullSyncWorker();
+			}
+		});
+		if (digestStore != null) {
+			digestStore.save();
+		}
+		// Exit with an error so a failed run is noticed and resumed
+		if (engine.getFailed() > 0 || engine.getUnfinished() > 0) {
+			throw new IllegalStateException("Full sync failed for " + engine.getFailed() + " groups and didn't finish "
+					+ engine.getUnfinished() + " groups, run it again with run id " + runId + " to retry them");
+		}
+	}
 
-		LOG.debug("Here is the group list: " + groups);
+	/**
+	 * Publishes outbox messages to the targets in turn on its own connection.
+	 */
+	private class OutboxSender implements OutboxJournal.Sender {
 
-		for (Group group : groups) {
+		// The settings of the last load, read by the drainer on each send
+		private volatile ConsumerProperties settings;
+		private ConsumerProperties connectedWith;
+		private MessagePublisher outboxPublisher;
 
-			if (groupOk(group.getName())) {
-				LOG.info("Full sync group: " + group.getName());
-				System.out.printf("Full sync for group: %s\n", group.getName());
-				Set<Member> members = getAllGroupMembers(group);
+		OutboxSender(ConsumerProperties settings) {
+			this.settings = settings;
+		}
 
-				if (basicSyncType) {
-					String mesg = getGroupFullSyncMessage(group, members);
-					LOG.debug(mesg);
-					try {
-						writeMessage(mesg, group.getName(), 0);
-					} catch (Exception e) {
-						LOG.error("Error sending activemq message ", e);
-					}				}
-
-				if (iMOSyncType) {
-					String mesgIsMemberOf = getIsMemberOfFullSyncMessage(group, members);
-					LOG.debug(mesgIsMemberOf);
-					try {
-						writeMessage(mesgIsMemberOf, group.getName(), 0);
-					} catch (Exception e) {
-						LOG.error("Error sending activemq message ", e);
-					}
+		void setSettings(ConsumerProperties settings) {
+			this.settings = settings;
+		}
+
+		public void send(String jmsxGroupId, byte[] message) throws JMSException {
+			ConsumerProperties settings = this.settings;
+			MessagePublisher outboxPublisher = publisher(settings);
+			outboxPublisher.setCompressThreshold(settings.getCompressThreshold());
+			List<String> targets = settings.getTargetList();
+			if (compositeFanOut && targets.size() > 1) {
+				targets = Collections.singletonList(settings.getCompositeTarget());
+			}
+			List<MessagePublisher.Payload> payloads = preparePayloads(outboxPublisher, targets,
+					BinaryMessageCodec.INSTANCE.decode(message));
+			for (int i = 0; i < targets.size(); i++) {
+				outboxPublisher.send(targets.get(i), payloads.get(i), jmsxGroupId);
+			}
+		}
+
+		// The broker being down, rather than it or the codec rejecting the message
+		public boolean isTransient(Exception e) {
+			if (!(e instanceof JMSException)) {
+				return false;
+			}
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {
+					return true;
 				}
+			}
+			return ((JMSException) e).getLinkedException() instanceof IOException
+					|| !isHealthy();
+		}
 
-				LOG.info("Full Sync completed sucessfully for group: "
-						+ group.getName());
-			} else {
-				LOG.debug("Skipping Full Sync for group: "
-						+ group.getName());
+		// Reconnect when the broker settings have changed since the last send
+		private synchronized MessagePublisher publisher(ConsumerProperties settings) {
+			if (outboxPublisher != null && !sameBroker(connectedWith, settings)) {
+				LOG.info("'{}' - Reconnecting outbox to {}", consumerName, settings.getBrokerUrl());
+				outboxPublisher.close();
+				outboxPublisher = null;
+			}
+			if (outboxPublisher == null) {
+				outboxPublisher = MessagePublisher.create(settings.getBrokerUrl(), settings.getUsername(),
+						settings.getPassword());
+				connectedWith = settings;
+			}
+			return outboxPublisher;
+		}
+
+		private boolean sameBroker(ConsumerProperties a, ConsumerProperties b) {
+			return a.getBrokerUrl().equals(b.getBrokerUrl()) && a.getUsername().equals(b.getUsername())
+					&& a.getPassword().equals(b.getPassword());
+		}
+
+		private synchronized boolean isHealthy() {
+			return outboxPublisher != null && outboxPublisher.isHealthy();
+		}
+
+		synchronized void close() {
+			if (outboxPublisher != null) {
+				outboxPublisher.close();
+				outboxPublisher = null;
+			}
+		}
+	}
+
+	/**
+	 * Full syncs groups on one engine thread with its own publisher.
+	 */
+	private class FullSyncWorker implements FullSyncEngine.Worker {
+
+		private MessagePublisher workerConnection;
+
+		public void start() throws Exception {
+			workerConnection = MessagePublisher.create(brokerURL, username, password);
+			workerConnection.setTransacted(transacted);
+			workerConnection.setCompressThreshold(properties.getCompressThreshold());
+			workerConnection.connect();
+			workerPublisher.set(workerConnection);
+		}
+
+		public boolean sync(GrouperSession session, String groupName) throws Exception {
+			Group group = GroupFinder.findByName(session, groupName, false);
+			return group != null && syncOneGroup(group);
+		}
+
+		public void finish() {
+			workerPublisher.remove();
+			if (workerConnection != null) {
+				LOG.info("Full sync worker compression: {}", workerConnection.getCompressionStats());
+				workerConnection.close();
+			}
+		}
+	}
+
+	/**
+	 * Full sync one group. A group whose messages couldn't be sent or
+	 * committed throws, so the engine counts it as failed and doesn't record
+	 * it in the checkpoint.
+	 */
+	private boolean syncOneGroup(Group group) throws Exception {
+		if (groupOk(group)) {
+			LOG.info("Full sync group: " + group.getName());
+			System.out.printf("Full sync for group: %s\n", group.getName());
+			GroupDigest digest = null;
+			boolean published = true;
+			try {
+				if (fullSyncVerify) {
+					writeVerifyGroup(basicSyncType ? "fullSync" : "fullSyncIsMemberOf", group, 0);
+				} else {
+					if (basicSyncType) {
+						digest = newDigest("fullSync", group);
+						published = writeGroupFullSync(group, 0, digest);
+					}
+					if (iMOSyncType) {
+						digest = newDigest("fullSyncIsMemberOf", group);
+						published = writeIsMemberOfFullSync(group, 0, digest);
+					}
+				}
+			} catch (Exception e) {
+				LOG.error("Error sending activemq message for group " + group.getName(), e);
+				rollbackFullSync();
+				throw e;
+			}
+			if (!published) {
+				LOG.info("Full Sync skipped for unchanged group: " + group.getName());
+				return false;
+			}
+			if (!commitFullSync(group.getName())) {
+				throw new RuntimeException("Full sync of group " + group.getName() + " was not committed");
 			}
+			if (digest != null) {
+				digestStore.put(group.getName(), digest.toString());
+			}
+
+			LOG.info("Full Sync completed sucessfully for group: "
+					+ group.getName());
+			return true;
+		} else {
+			LOG.debug("Skipping Full Sync for group: "
+					+ group.getName());
+			return false;
 		}
 	}
 
 
 
-	private static void syncAllPrivs(GrouperSession session, ConsumerMain consumer) {
+	private void syncAllPrivs(GrouperSession session, ConsumerMain consumer) {
 		Set<Group> groups = GroupFinder.findAllByType(session,
 				GroupTypeFinder.find("base", false));
 
@@ -1277,13 +2132,14 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 				LOG.debug("Full sync privilege for group: " + group.getName());
 				Set<Subject> subjects = group.getAdmins();
 				subjects.addAll(group.getUpdaters());
-				String mesg = getGroupPrivilegeFullSyncMessage(group, subjects);
-				LOG.debug(mesg);
+				ProvisioningMessage mesg = getGroupPrivilegeFullSyncMessage(group, subjects);
+				LOG.debug("{}", mesg);
 				try {
 					writeMessage(mesg, group.getName(), 0);
 				} catch (Exception e) {
 					LOG.error("Error sending activemq message ", e);
 				}
+				commitFullSync(group.getName());
 				LOG.info("Full Sync privlege completed sucessfully for group: "
 						+ group.getName());
 			} else {
@@ -1293,7 +2149,7 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		}
 	}
 /*
-	private static void syncGroup(GrouperSession session, String groupName) {
+	private void syncGroup(GrouperSession session, String groupName) {
 		Group group = GroupFinder.findByName(session, groupName, false);
 		if (group != null) {
 			LOG.debug("Sync for group: " + group.getName());
@@ -1318,15 +2174,15 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		}
 	}
 */
-	private static void syncPriv(GrouperSession session, String groupName) {
+	private void syncPriv(GrouperSession session, String groupName) {
 		Group group = GroupFinder.findByName(session, groupName, false);
 		if (group != null) {
 			LOG.debug("Full sync privilege for group : " + group.getName());
 			
 			Set<Subject> subjects = group.getAdmins();
 			subjects.addAll(group.getUpdaters());
-			String mesg = getGroupPrivilegeFullSyncMessage(group, subjects);
-			LOG.debug(mesg);
+			ProvisioningMessage mesg = getGroupPrivilegeFullSyncMessage(group, subjects);
+			LOG.debug("{}", mesg);
 			try {
 				writeMessage(mesg, group.getName(), 0);
 			} catch (Exception e) {
@@ -1341,4 +2197,44 @@ public class ConsumerMain extends ChangeLogConsumerBase implements Serializable
 		}
 	}
 
+
+	/**
+	 * A message encoded for the outbox or for each of its targets.
+	 */
+	private static class EncodedMessage {
+
+		private final ProvisioningMessage message;
+		// Set when the message goes to the outbox
+		private final byte[] outboxRecord;
+		private final List<String> targets;
+		private final List<MessagePublisher.Payload> payloads;
+
+		EncodedMessage(ProvisioningMessage message, byte[] outboxRecord, List<String> targets,
+				List<MessagePublisher.Payload> payloads) {
+			this.message = message;
+			this.outboxRecord = outboxRecord;
+			this.targets = targets;
+			this.payloads = payloads;
+		}
+	}
+
+	/**
+	 * A message collected on a dispatch thread, with what writeMemberMessage
+	 * needs to buffer it. bulkOperation is null for writeMessage.
+	 */
+	private static class PendingWrite {
+
+		private final String bulkOperation;
+		private final String jmsxGroupId;
+		private final String memberName;
+		private final ProvisioningMessage message;
+
+		PendingWrite(String bulkOperation, String jmsxGroupId, String memberName,
+				ProvisioningMessage message) {
+			this.bulkOperation = bulkOperation;
+			this.jmsxGroupId = jmsxGroupId;
+			this.memberName = memberName;
+			this.message = message;
+		}
+	}
 }
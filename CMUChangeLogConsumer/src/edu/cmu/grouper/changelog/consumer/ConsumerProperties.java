@@ -13,8 +13,12 @@ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
 
 package edu.cmu.grouper.changelog.consumer;
 
-import java.lang.Exception;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 //import edu.internet2.middleware.grouperClient.config.ConfigPropertiesCascadeBase;
@@ -26,7 +30,9 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Act on member changes
+ * The settings of one consumer from grouper-loader.properties, read once.
+ * Each consumer has its own instance, so consumers in the same loader JVM
+ * don't see each other's settings.
  */
 public class ConsumerProperties {
 
@@ -35,18 +41,55 @@ public class ConsumerProperties {
 	//private final static Log log = LogFactory.getLog(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
 	private static final String PARAMETER_NAMESPACE = "changeLog.consumer.";
 	
-	private static String brokerURL = null;
-	private static String username = null;
-	private static String password = null;
-	private static String targets = null;
-	private static String usduExcludes = null;
-	private static String allowLargeGroupsAttribute = null;
-	private static int maxMembers = 0;
-	private static String syncAttribute = null;
-	private static String syncType = null;
-	private static boolean useXmlMessageFormat = false;
+	private final String consumerName;
+	// The loader config these settings were read from
+	private final GrouperLoaderConfig source;
+	private final String brokerURL;
+	private final String username;
+	private final String password;
+	private final String targets;
+	private final List<String> targetList;
+	private final String compositeTarget;
+	private final String usduExcludes;
+	private final String allowLargeGroupsAttribute;
+	private final int maxMembers;
+	private final String syncAttribute;
+	private final String syncType;
+	private final boolean useXmlMessageFormat;
+	private final String messageFormat;
+	private final Map<String, String> targetMessageFormats;
+	private final boolean transacted;
+	private final int transactionSize;
+	private final boolean asyncSend;
+	private final int maxInFlight;
+	private final String fanOutMode;
+	private final int compressThreshold;
+	private final String outboxFile;
+	private final int outboxMaxMegabytes;
+	private final int eligibilityCacheSize;
+	private final int eligibilityCacheMaxAge;
+	private final boolean useAttributeIndex;
+	private final int attributeIndexMaxAge;
+	private final int memberCacheSize;
+	private final int memberCacheMaxAge;
+	private final boolean coalesceMemberships;
+	private final int memberBulkSize;
+	private final int dispatchThreads;
+	private final int fullSyncChunkSize;
+	private final int memberPageSize;
+	private final List<String> fullSyncRootStems;
+	private final int fullSyncThreads;
+	private final int fullSyncQueueSize;
+	private final int fullSyncProgressInterval;
+	private final String fullSyncCheckpointFile;
+	private final int fullSyncCheckpointInterval;
+	private final String fullSyncDigestFile;
+	private final boolean fullSyncForce;
+	private final boolean fullSyncVerify;
 
 	public ConsumerProperties(String consumerName) {
+		this.consumerName = consumerName;
+		this.source = GrouperLoaderConfig.retrieveConfig();
 		
 		final String qualifiedParameterNamespace = PARAMETER_NAMESPACE + consumerName + ".";
 
@@ -56,94 +99,404 @@ public class ConsumerProperties {
 		try {
 			
 			brokerURL = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueStringRequired(qualifiedParameterNamespace + "brokerURL");
+					source.propertyValueStringRequired(qualifiedParameterNamespace + "brokerURL");
 					LOG.debug("{} Consumer - Setting brokerURL to {}", consumerName, brokerURL);
 			        
 			username = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueStringRequired(qualifiedParameterNamespace + "username");
+					source.propertyValueStringRequired(qualifiedParameterNamespace + "username");
 					LOG.debug("{} Consumer - Setting username to {}", consumerName, username);
 			        
 			password = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "password", "");
+					source.propertyValueString(qualifiedParameterNamespace + "password", "");
 					LOG.debug("{} Consumer - Setting password to {}", consumerName, password);
 			
 			targets = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueStringRequired(qualifiedParameterNamespace + "targets");
+					source.propertyValueStringRequired(qualifiedParameterNamespace + "targets");
 					LOG.debug("{} Consumer - Setting targets to {}", consumerName, targets);
+			
+			targetList = parseTargets(targets);
+			compositeTarget = joinTargets(targetList);
 			   
 			usduExcludes = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "usduExcludes", "");
+					source.propertyValueString(qualifiedParameterNamespace + "usduExcludes", "");
 					LOG.debug("{} Consumer - Setting usduExcludes to {}", consumerName, usduExcludes);
 			
 			allowLargeGroupsAttribute = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "allowLargeGroupsAttribute", "");
+					source.propertyValueString(qualifiedParameterNamespace + "allowLargeGroupsAttribute", "");
 					LOG.debug("{} Consumer - Setting allowLargeGroupsAttribute to {}", consumerName, allowLargeGroupsAttribute);
 			
 			maxMembers = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "maxMembers", 1000);
+					source.propertyValueInt(qualifiedParameterNamespace + "maxMembers", 1000);
 					LOG.debug("{} Consumer - Setting maxMembers to {}", consumerName, maxMembers);
 			
 			syncAttribute = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueStringRequired(qualifiedParameterNamespace + "syncAttribute");
+					source.propertyValueStringRequired(qualifiedParameterNamespace + "syncAttribute");
 					LOG.debug("{} Consumer - Setting syncAttribute to {}", consumerName, syncAttribute);
 			   		
 			syncType = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "syncType", "basic");
+					source.propertyValueString(qualifiedParameterNamespace + "syncType", "basic");
 					LOG.debug("{} Consumer - Setting syncType to {}", consumerName, syncType);
 					
 			useXmlMessageFormat = 
-					GrouperLoaderConfig.retrieveConfig().propertyValueBoolean(qualifiedParameterNamespace + "useXmlMessageFormat", true);
+					source.propertyValueBoolean(qualifiedParameterNamespace + "useXmlMessageFormat", true);
 					LOG.debug("{} Consumer - Setting useXmlMessageFormat to {}", consumerName, useXmlMessageFormat);
+					
+			messageFormat = 
+					source.propertyValueString(qualifiedParameterNamespace + "messageFormat", "");
+					LOG.debug("{} Consumer - Setting messageFormat to {}", consumerName, messageFormat);
+					
+			String targetFormats = 
+					source.propertyValueString(qualifiedParameterNamespace + "targetMessageFormats", "");
+					LOG.debug("{} Consumer - Setting targetMessageFormats to {}", consumerName, targetFormats);
+			targetMessageFormats = parseTargetFormats(consumerName, targetFormats);
+					
+			transacted = 
+					source.propertyValueBoolean(qualifiedParameterNamespace + "transacted", false);
+					LOG.debug("{} Consumer - Setting transacted to {}", consumerName, transacted);
+					
+			transactionSize = 
+					source.propertyValueInt(qualifiedParameterNamespace + "transactionSize", 500);
+					LOG.debug("{} Consumer - Setting transactionSize to {}", consumerName, transactionSize);
+					
+			asyncSend = 
+					source.propertyValueBoolean(qualifiedParameterNamespace + "asyncSend", false);
+					LOG.debug("{} Consumer - Setting asyncSend to {}", consumerName, asyncSend);
+					
+			maxInFlight = 
+					source.propertyValueInt(qualifiedParameterNamespace + "maxInFlight", 1000);
+					LOG.debug("{} Consumer - Setting maxInFlight to {}", consumerName, maxInFlight);
+					
+			fanOutMode = 
+					source.propertyValueString(qualifiedParameterNamespace + "fanOutMode", "sequential");
+					LOG.debug("{} Consumer - Setting fanOutMode to {}", consumerName, fanOutMode);
+					
+			compressThreshold = 
+					source.propertyValueInt(qualifiedParameterNamespace + "compressThreshold", 0);
+					LOG.debug("{} Consumer - Setting compressThreshold to {}", consumerName, compressThreshold);
+					
+			outboxFile = 
+					source.propertyValueString(qualifiedParameterNamespace + "outboxFile", "");
+					LOG.debug("{} Consumer - Setting outboxFile to {}", consumerName, outboxFile);
+					
+			outboxMaxMegabytes = 
+					source.propertyValueInt(qualifiedParameterNamespace + "outboxMaxMegabytes", 256);
+					LOG.debug("{} Consumer - Setting outboxMaxMegabytes to {}", consumerName, outboxMaxMegabytes);
+					
+			eligibilityCacheSize = 
+					source.propertyValueInt(qualifiedParameterNamespace + "eligibilityCacheSize", 10000);
+					LOG.debug("{} Consumer - Setting eligibilityCacheSize to {}", consumerName, eligibilityCacheSize);
+					
+			eligibilityCacheMaxAge = 
+					source.propertyValueInt(qualifiedParameterNamespace + "eligibilityCacheMaxAge", 3600);
+					LOG.debug("{} Consumer - Setting eligibilityCacheMaxAge to {}", consumerName, eligibilityCacheMaxAge);
+					
+			useAttributeIndex = 
+					source.propertyValueBoolean(qualifiedParameterNamespace + "useAttributeIndex", false);
+					LOG.debug("{} Consumer - Setting useAttributeIndex to {}", consumerName, useAttributeIndex);
+					
+			attributeIndexMaxAge = 
+					source.propertyValueInt(qualifiedParameterNamespace + "attributeIndexMaxAge", 86400);
+					LOG.debug("{} Consumer - Setting attributeIndexMaxAge to {}", consumerName, attributeIndexMaxAge);
+					
+			memberCacheSize = 
+					source.propertyValueInt(qualifiedParameterNamespace + "memberCacheSize", 10000);
+					LOG.debug("{} Consumer - Setting memberCacheSize to {}", consumerName, memberCacheSize);
+					
+			memberCacheMaxAge = 
+					source.propertyValueInt(qualifiedParameterNamespace + "memberCacheMaxAge", 3600);
+					LOG.debug("{} Consumer - Setting memberCacheMaxAge to {}", consumerName, memberCacheMaxAge);
+					
+			coalesceMemberships = 
+					source.propertyValueBoolean(qualifiedParameterNamespace + "coalesceMemberships", false);
+					LOG.debug("{} Consumer - Setting coalesceMemberships to {}", consumerName, coalesceMemberships);
+					
+			memberBulkSize = 
+					source.propertyValueInt(qualifiedParameterNamespace + "memberBulkSize", 1);
+					LOG.debug("{} Consumer - Setting memberBulkSize to {}", consumerName, memberBulkSize);
+					
+			dispatchThreads = 
+					source.propertyValueInt(qualifiedParameterNamespace + "dispatchThreads", 1);
+					LOG.debug("{} Consumer - Setting dispatchThreads to {}", consumerName, dispatchThreads);
+					
+			fullSyncChunkSize = 
+					source.propertyValueInt(qualifiedParameterNamespace + "fullSyncChunkSize", 0);
+					LOG.debug("{} Consumer - Setting fullSyncChunkSize to {}", consumerName, fullSyncChunkSize);
+					
+			memberPageSize = 
+					source.propertyValueInt(qualifiedParameterNamespace + "memberPageSize", 1000);
+					LOG.debug("{} Consumer - Setting memberPageSize to {}", consumerName, memberPageSize);
+					
+			fullSyncRootStems = parseTargets(
+					source.propertyValueString(qualifiedParameterNamespace + "fullSyncRootStems", "edu:berkeley"));
+					LOG.debug("{} Consumer - Setting fullSyncRootStems to {}", consumerName, fullSyncRootStems);
+					
+			fullSyncThreads = 
+					source.propertyValueInt(qualifiedParameterNamespace + "fullSyncThreads", 1);
+					LOG.debug("{} Consumer - Setting fullSyncThreads to {}", consumerName, fullSyncThreads);
+					
+			fullSyncQueueSize = 
+					source.propertyValueInt(qualifiedParameterNamespace + "fullSyncQueueSize", 1000);
+					LOG.debug("{} Consumer - Setting fullSyncQueueSize to {}", consumerName, fullSyncQueueSize);
+					
+			fullSyncProgressInterval = 
+					source.propertyValueInt(qualifiedParameterNamespace + "fullSyncProgressInterval", 60);
+					LOG.debug("{} Consumer - Setting fullSyncProgressInterval to {}", consumerName, fullSyncProgressInterval);
+					
+			fullSyncCheckpointFile = 
+					source.propertyValueString(qualifiedParameterNamespace + "fullSyncCheckpointFile", "");
+					LOG.debug("{} Consumer - Setting fullSyncCheckpointFile to {}", consumerName, fullSyncCheckpointFile);
+					
+			fullSyncCheckpointInterval = 
+					source.propertyValueInt(qualifiedParameterNamespace + "fullSyncCheckpointInterval", 30);
+					LOG.debug("{} Consumer - Setting fullSyncCheckpointInterval to {}", consumerName, fullSyncCheckpointInterval);
+					
+			fullSyncDigestFile = 
+					source.propertyValueString(qualifiedParameterNamespace + "fullSyncDigestFile", "");
+					LOG.debug("{} Consumer - Setting fullSyncDigestFile to {}", consumerName, fullSyncDigestFile);
+					
+			fullSyncForce = 
+					source.propertyValueBoolean(qualifiedParameterNamespace + "fullSyncForce", false);
+					LOG.debug("{} Consumer - Setting fullSyncForce to {}", consumerName, fullSyncForce);
+					
+			fullSyncVerify = 
+					source.propertyValueBoolean(qualifiedParameterNamespace + "fullSyncVerify", false);
+					LOG.debug("{} Consumer - Setting fullSyncVerify to {}", consumerName, fullSyncVerify);
 		
 			   				
 
-		} catch (Exception e) {
-			LOG.error("Error reading configuration values: " + e);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid configuration: " + e.getMessage(), e);
 		}
 	}
 
 	
-	public static String getBrokerUrl() {
+	public String getConsumerName() {
+		return consumerName;
+	}
+
+	/**
+	 * Whether these settings still match grouper-loader.properties. Grouper
+	 * replaces its config object when it reloads changed files, so a
+	 * different object means the settings have to be read again.
+	 */
+	public boolean isCurrent() {
+		return GrouperLoaderConfig.retrieveConfig() == source;
+	}
+	
+	public String getBrokerUrl() {
 		return brokerURL;
 	}
 
-	public static String getUsername() {
+	public String getUsername() {
 		return username;
 	}
 
-	public static String getPassword() {
+	public String getPassword() {
 		return password;
 	}
 	
-	public static String getTargets() {
+	public String getTargets() {
 		return targets;
 	}
 	
-	public static String getUsduExcludes() {
+	/**
+	 * The targets split on commas, trimmed, with empty names removed.
+	 */
+	public List<String> getTargetList() {
+		return targetList;
+	}
+	
+	/**
+	 * The targets as one ActiveMQ composite queue name, e.g. ldap.isMemberOf,ad.groups
+	 */
+	public String getCompositeTarget() {
+		return compositeTarget;
+	}
+	
+	public String getUsduExcludes() {
 		return usduExcludes;
 	}
 	
-	public static String getAllowLargeGroupsAttribute() {
+	public String getAllowLargeGroupsAttribute() {
 		       return allowLargeGroupsAttribute;
 	}
 	
 
-	public static int getMaxMembers() {
+	public int getMaxMembers() {
 		return maxMembers;
 	}
 
-	public static String getSyncAttribute() {
+	public String getSyncAttribute() {
 		return syncAttribute;
 	}
 	
-	public static String getSyncType() {
+	public String getSyncType() {
 		return syncType;
 	}
 	
-	public static boolean getUseXmlMessageFormat() {
+	public boolean getUseXmlMessageFormat() {
 		return useXmlMessageFormat;
 	}
 	
+	public String getMessageFormat() {
+		return messageFormat;
+	}
+	
+	/**
+	 * Message format by target queue, from target=format pairs separated by commas.
+	 */
+	public Map<String, String> getTargetMessageFormats() {
+		return targetMessageFormats;
+	}
+	
+	public boolean getTransacted() {
+		return transacted;
+	}
+	
+	public int getTransactionSize() {
+		return transactionSize;
+	}
+	
+	public boolean getAsyncSend() {
+		return asyncSend;
+	}
+	
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	public String getFanOutMode() {
+		return fanOutMode;
+	}
+	
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+	
+	public String getOutboxFile() {
+		return outboxFile;
+	}
+	
+	public int getOutboxMaxMegabytes() {
+		return outboxMaxMegabytes;
+	}
+	
+	public int getEligibilityCacheSize() {
+		return eligibilityCacheSize;
+	}
+	
+	public int getEligibilityCacheMaxAge() {
+		return eligibilityCacheMaxAge;
+	}
+	
+	public boolean getUseAttributeIndex() {
+		return useAttributeIndex;
+	}
+	
+	public int getAttributeIndexMaxAge() {
+		return attributeIndexMaxAge;
+	}
+	
+	public int getMemberCacheSize() {
+		return memberCacheSize;
+	}
+	
+	public int getMemberCacheMaxAge() {
+		return memberCacheMaxAge;
+	}
+	
+	public boolean getCoalesceMemberships() {
+		return coalesceMemberships;
+	}
+	
+	public int getMemberBulkSize() {
+		return memberBulkSize;
+	}
+	
+	public int getDispatchThreads() {
+		return dispatchThreads;
+	}
+	
+	public int getFullSyncChunkSize() {
+		return fullSyncChunkSize;
+	}
+	
+	public int getMemberPageSize() {
+		return memberPageSize;
+	}
+	
+	public List<String> getFullSyncRootStems() {
+		return fullSyncRootStems;
+	}
+	
+	public int getFullSyncThreads() {
+		return fullSyncThreads;
+	}
+	
+	public int getFullSyncQueueSize() {
+		return fullSyncQueueSize;
+	}
+	
+	public int getFullSyncProgressInterval() {
+		return fullSyncProgressInterval;
+	}
+	
+	public String getFullSyncCheckpointFile() {
+		return fullSyncCheckpointFile;
+	}
+	
+	public int getFullSyncCheckpointInterval() {
+		return fullSyncCheckpointInterval;
+	}
+	
+	public String getFullSyncDigestFile() {
+		return fullSyncDigestFile;
+	}
+	
+	public boolean getFullSyncForce() {
+		return fullSyncForce;
+	}
+	
+	public boolean getFullSyncVerify() {
+		return fullSyncVerify;
+	}
+	
+	static List<String> parseTargets(String targets) {
+		List<String> list = new ArrayList<String>();
+		if (targets != null) {
+			for (String target : targets.split("[,]")) {
+				if (target.trim().length() > 0) {
+					list.add(target.trim());
+				}
+			}
+		}
+		return Collections.unmodifiableList(list);
+	}
+	
+	private static Map<String, String> parseTargetFormats(String consumerName, String targetFormats) {
+		Map<String, String> formats = new LinkedHashMap<String, String>();
+		for (String targetFormat : parseTargets(targetFormats)) {
+			int equals = targetFormat.lastIndexOf('=');
+			if (equals > 0) {
+				formats.put(targetFormat.substring(0, equals).trim(), targetFormat.substring(equals + 1).trim());
+			} else {
+				LOG.warn("{} Consumer - Ignoring targetMessageFormats entry {}", consumerName, targetFormat);
+			}
+		}
+		return Collections.unmodifiableMap(formats);
+	}
+	
+	static String joinTargets(List<String> targets) {
+		StringBuilder joined = new StringBuilder();
+		for (String target : targets) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(target);
+		}
+		return joined.toString();
+	}
+	
 
 	
 }
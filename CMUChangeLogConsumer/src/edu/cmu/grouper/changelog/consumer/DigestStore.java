@@ -0,0 +1,107 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The digest of each group as last published by a full sync, kept in a
+ * local file of group name, tab, digest lines. A full sync leaves out
+ * groups whose digest hasn't changed unless it is forced.
+ */
+public class DigestStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	private final File file;
+	private final boolean force;
+	private final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+
+
+	/**
+	 * @param force publish every group, still recording the new digests
+	 */
+	public DigestStore(File file, boolean force) throws IOException {
+		this.file = file;
+		this.force = force;
+		if (file.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int tab = line.lastIndexOf('\t');
+					if (tab > 0) {
+						digests.put(line.substring(0, tab), line.substring(tab + 1));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		LOG.info("Loaded {} group digests from {}", digests.size(), file);
+	}
+
+	/**
+	 * Whether the group was last published with this digest.
+	 */
+	public boolean isUnchanged(String groupName, String digest) {
+		return !force && digest.equals(digests.get(groupName));
+	}
+
+	/**
+	 * Record a digest once the group has been published.
+	 */
+	public void put(String groupName, String digest) {
+		digests.put(groupName, digest);
+	}
+
+	/**
+	 * Write the digests to a temporary file and move it into place.
+	 */
+	public synchronized void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+		try {
+			for (Map.Entry<String, String> entry : digests.entrySet()) {
+				writer.write(entry.getKey());
+				writer.write('\t');
+				writer.write(entry.getValue());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+		LOG.info("Saved {} group digests to {}", digests.size(), file);
+	}
+}
@@ -0,0 +1,175 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded cache of whether a group has the sync and allowLargeGroups
+ * attributes set, directly or through a parent stem. It is kept across
+ * change log batches and invalidated by the entries that can change it.
+ * The least recently used group is evicted when the cache is full.
+ */
+public class EligibilityCache {
+
+	private final int maxSize;
+	private final long maxAgeMillis;
+	private final LinkedHashMap<String, Eligibility> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+
+	/**
+	 * @param maxSize most groups to hold
+	 * @param maxAgeSeconds how long an entry stays valid, 0 for no limit
+	 */
+	public EligibilityCache(int maxSize, int maxAgeSeconds) {
+		this.maxSize = Math.max(1, maxSize);
+		this.maxAgeMillis = maxAgeSeconds * 1000L;
+		this.entries = new LinkedHashMap<String, Eligibility>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Eligibility> eldest) {
+				if (size() > EligibilityCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * The cached eligibility for a group, or null if it is not cached or has expired.
+	 */
+	public synchronized Eligibility get(String groupName) {
+		Eligibility eligibility = entries.get(groupName);
+		if (eligibility != null && maxAgeMillis > 0
+				&& System.currentTimeMillis() - eligibility.loadedAt > maxAgeMillis) {
+			entries.remove(groupName);
+			eligibility = null;
+		}
+		if (eligibility == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return eligibility;
+	}
+
+	public synchronized Eligibility put(String groupName, boolean syncEnabled,
+			boolean largeGroupsAllowed) {
+		Eligibility eligibility = new Eligibility(syncEnabled, largeGroupsAllowed);
+		entries.put(groupName, eligibility);
+		return eligibility;
+	}
+
+	/**
+	 * Drop a single group.
+	 */
+	public synchronized void invalidate(String groupName) {
+		if (groupName != null && entries.remove(groupName) != null) {
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Drop every group in a stem and its sub-stems.
+	 */
+	public synchronized void invalidateStem(String stemName) {
+		if (stemName == null) {
+			return;
+		}
+		String prefix = stemName + ":";
+		Iterator<String> groupNames = entries.keySet().iterator();
+		while (groupNames.hasNext()) {
+			if (groupNames.next().startsWith(prefix)) {
+				groupNames.remove();
+				invalidations++;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		invalidations += entries.size();
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "size=" + entries.size() + "/" + maxSize + " hits=" + hits
+				+ " misses=" + misses + " evictions=" + evictions
+				+ " invalidations=" + invalidations;
+	}
+
+
+	/**
+	 * Attribute state for one group.
+	 */
+	public static class Eligibility {
+
+		private final boolean syncEnabled;
+		private final boolean largeGroupsAllowed;
+		private final long loadedAt;
+
+		Eligibility(boolean syncEnabled, boolean largeGroupsAllowed) {
+			this.syncEnabled = syncEnabled;
+			this.largeGroupsAllowed = largeGroupsAllowed;
+			this.loadedAt = System.currentTimeMillis();
+		}
+
+		public boolean isSyncEnabled() {
+			return syncEnabled;
+		}
+
+		public boolean isLargeGroupsAllowed() {
+			return largeGroupsAllowed;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Records the groups a full sync run has finished, so a restart of the same
+ * run can skip them. The file starts with a runId= line followed by one
+ * group name per line. Finished groups are appended every few seconds; a
+ * file from a different run is replaced.
+ */
+public class FullSyncCheckpoint {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	private static final String RUN_ID_PREFIX = "runId=";
+
+	private final File file;
+	private final String runId;
+	private final long intervalMillis;
+	private final Set<String> completed = new HashSet<String>();
+	// Finished since the last write
+	private final List<String> pending = new ArrayList<String>();
+	private long lastWrite = System.currentTimeMillis();
+	private Writer writer;
+
+
+	/**
+	 * Open the checkpoint for a run, loading the groups already finished if
+	 * the file belongs to the same run.
+	 */
+	public FullSyncCheckpoint(File file, String runId, int intervalSeconds) throws IOException {
+		this.file = file;
+		this.runId = runId;
+		this.intervalMillis = intervalSeconds * 1000L;
+
+		boolean resume = false;
+		if (file.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line = reader.readLine();
+				if (line != null && line.equals(RUN_ID_PREFIX + runId)) {
+					resume = true;
+					while ((line = reader.readLine()) != null) {
+						if (line.length() > 0) {
+							completed.add(line);
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, resume), "UTF-8"));
+		if (resume) {
+			LOG.info("Resuming full sync run {}, {} groups already done", runId, completed.size());
+		} else {
+			writer.write(RUN_ID_PREFIX + runId + "\n");
+			writer.flush();
+			LOG.info("Starting full sync run {}, checkpoint {}", runId, file);
+		}
+	}
+
+	public String getRunId() {
+		return runId;
+	}
+
+	public synchronized boolean isCompleted(String groupName) {
+		return completed.contains(groupName);
+	}
+
+	public synchronized int getCompletedCount() {
+		return completed.size();
+	}
+
+	/**
+	 * Record a finished group. It is written with the next periodic update.
+	 */
+	public synchronized void markCompleted(String groupName) throws IOException {
+		if (completed.add(groupName)) {
+			pending.add(groupName);
+		}
+		if (System.currentTimeMillis() - lastWrite >= intervalMillis) {
+			flush();
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		if (writer == null) {
+			return;
+		}
+		for (String groupName : pending) {
+			writer.write(groupName);
+			writer.write('\n');
+		}
+		writer.flush();
+		pending.clear();
+		lastWrite = System.currentTimeMillis();
+	}
+
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			flush();
+			writer.close();
+			writer = null;
+		}
+	}
+}
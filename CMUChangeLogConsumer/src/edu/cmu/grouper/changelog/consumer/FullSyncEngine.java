@@ -0,0 +1,262 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.Stem;
+import edu.internet2.middleware.grouper.Stem.Scope;
+import edu.internet2.middleware.grouper.StemFinder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Full sync of every group under a set of root stems on a pool of worker
+ * threads. The calling thread lists the groups and feeds their names to the
+ * workers through a bounded queue. Each worker starts its own Grouper
+ * session and whatever else its Worker sets up, such as a JMS producer.
+ */
+public class FullSyncEngine {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	// Tells a worker there are no more groups
+	private static final String END = new String("end");
+
+	private final int threads;
+	private final BlockingQueue<String> queue;
+	private final long progressIntervalMillis;
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger synced = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger resumed = new AtomicInteger();
+	private final AtomicInteger stoppedWorkers = new AtomicInteger();
+	private FullSyncCheckpoint checkpoint;
+
+
+	/**
+	 * What a worker thread does with each group.
+	 */
+	public interface Worker {
+
+		/**
+		 * Set up the thread, after its Grouper session has started.
+		 */
+		void start() throws Exception;
+
+		/**
+		 * @return false if the group was skipped
+		 */
+		boolean sync(GrouperSession session, String groupName) throws Exception;
+
+		void finish();
+	}
+
+	/**
+	 * Makes one Worker per thread.
+	 */
+	public interface WorkerFactory {
+		Worker newWorker();
+	}
+
+
+	public FullSyncEngine(int threads, int queueSize, int progressIntervalSeconds) {
+		this.threads = Math.max(1, threads);
+		this.queue = new ArrayBlockingQueue<String>(Math.max(1, queueSize));
+		this.progressIntervalMillis = progressIntervalSeconds * 1000L;
+	}
+
+	/**
+	 * Skip groups the checkpoint has recorded and record each group that is
+	 * synced or skipped. Failed groups are not recorded.
+	 */
+	public void setCheckpoint(FullSyncCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Sync every group under the root stems and wait for the workers to finish.
+	 */
+	public void run(GrouperSession gs, List<String> rootStems, WorkerFactory factory)
+			throws InterruptedException {
+		long start = System.currentTimeMillis();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new WorkerRunner(factory.newWorker()), "fullsync-" + i);
+			thread.start();
+			workers.add(thread);
+		}
+
+		long lastReport = System.currentTimeMillis();
+		try {
+			for (String rootStem : rootStems) {
+				Stem stem = StemFinder.findByName(gs, rootStem, false);
+				if (stem == null) {
+					LOG.error("Full sync root stem {} not found", rootStem);
+					continue;
+				}
+				LOG.info("Full sync of groups under {}", rootStem);
+				for (Group group : stem.getChildGroups(Scope.SUB)) {
+					if (checkpoint != null && checkpoint.isCompleted(group.getName())) {
+						resumed.incrementAndGet();
+						continue;
+					}
+					while (!queue.offer(group.getName(), 1, TimeUnit.SECONDS)) {
+						if (!anyAlive(workers)) {
+							throw new IllegalStateException("All full sync workers have stopped");
+						}
+					}
+					queued.incrementAndGet();
+					if (progressIntervalMillis > 0 && System.currentTimeMillis() - lastReport >= progressIntervalMillis) {
+						report(start);
+						lastReport = System.currentTimeMillis();
+					}
+				}
+			}
+		} finally {
+			for (int i = 0; i < workers.size(); i++) {
+				while (!queue.offer(END, 1, TimeUnit.SECONDS)) {
+					if (!anyAlive(workers)) {
+						break;
+					}
+				}
+			}
+		}
+
+		for (Thread worker : workers) {
+			while (worker.isAlive()) {
+				worker.join(progressIntervalMillis > 0 ? progressIntervalMillis : 0);
+				if (worker.isAlive()) {
+					report(start);
+				}
+			}
+		}
+		if (checkpoint != null) {
+			try {
+				checkpoint.close();
+			} catch (IOException e) {
+				LOG.error("Could not write full sync checkpoint", e);
+			}
+		}
+		LOG.info("Full sync finished in {} s: {}", (System.currentTimeMillis() - start) / 1000, progress());
+	}
+
+	public int getSynced() {
+		return synced.get();
+	}
+
+	/**
+	 * Groups whose sync threw, including ones whose messages couldn't be
+	 * sent or committed.
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Groups queued that no worker finished, because the workers stopped.
+	 */
+	public int getUnfinished() {
+		return queued.get() - synced.get() - skipped.get() - failed.get();
+	}
+
+	/**
+	 * Workers that stopped early, such as ones that couldn't connect.
+	 */
+	public int getStoppedWorkers() {
+		return stoppedWorkers.get();
+	}
+
+	private String progress() {
+		int done = synced.get() + skipped.get() + failed.get();
+		return done + "/" + queued.get() + " groups done, " + synced.get() + " synced, "
+				+ skipped.get() + " skipped, " + failed.get() + " failed, "
+				+ resumed.get() + " done in an earlier attempt, "
+				+ stoppedWorkers.get() + "/" + threads + " workers stopped";
+	}
+
+	private void report(long start) {
+		long seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+		int done = synced.get() + skipped.get() + failed.get();
+		LOG.info("Full sync progress: {}, {} groups/s", progress(), done / seconds);
+	}
+
+	private static boolean anyAlive(List<Thread> workers) {
+		for (Thread worker : workers) {
+			if (worker.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private class WorkerRunner implements Runnable {
+
+		private final Worker worker;
+
+		WorkerRunner(Worker worker) {
+			this.worker = worker;
+		}
+
+		public void run() {
+			GrouperSession session = null;
+			try {
+				session = GrouperSession.startRootSession();
+				worker.start();
+				String groupName;
+				while ((groupName = queue.take()) != END) {
+					try {
+						if (worker.sync(session, groupName)) {
+							synced.incrementAndGet();
+						} else {
+							skipped.incrementAndGet();
+						}
+					} catch (Exception e) {
+						failed.incrementAndGet();
+						LOG.error("Full sync failed for group " + groupName, e);
+						continue;
+					}
+					if (checkpoint != null) {
+						try {
+							checkpoint.markCompleted(groupName);
+						} catch (IOException e) {
+							LOG.error("Could not write full sync checkpoint", e);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				stoppedWorkers.incrementAndGet();
+				LOG.error("Full sync worker " + Thread.currentThread().getName() + " stopped", e);
+			} finally {
+				worker.finish();
+				GrouperSession.stopQuietly(session);
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Order independent digest of a group's full sync content. Each member adds
+ * the first and second 64 bits of the SHA-256 hash of its UTF-8 subject id
+ * into two running sums, so the digest is the same whatever order the members
+ * are read in and takes no memory per member.
+ */
+public class GroupDigest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final MessageDigest sha256;
+	private final long seed;
+	private long sum1 = 0;
+	private long sum2 = 0;
+	private int count = 0;
+
+
+	/**
+	 * @param parts everything besides the members that the message depends
+	 * on, such as the operation, description and message format
+	 */
+	public GroupDigest(String... parts) {
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+		for (String part : parts) {
+			sha256.update(String.valueOf(part).getBytes(UTF8));
+			sha256.update((byte) 0);
+		}
+		this.seed = toLong(sha256.digest(), 0);
+	}
+
+	public void add(String subjectId) {
+		byte[] hash = sha256.digest(subjectId.getBytes(UTF8));
+		sum1 += toLong(hash, 0);
+		sum2 += toLong(hash, 8);
+		count++;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * The member part of the digest alone, as two 16 digit hex sums joined by
+	 * "-": the first and second big-endian 64 bit words of SHA-256 over each
+	 * member's UTF-8 subject id, added modulo 2^64. Provisioners recompute
+	 * this to verify a group without its member list.
+	 */
+	public String getMembershipDigest() {
+		return hex(sum1) + "-" + hex(sum2);
+	}
+
+	@Override
+	public String toString() {
+		return hex(seed) + "-" + hex(sum1) + "-" + hex(sum2) + "-" + count;
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	private static String hex(long value) {
+		return String.format("%016x", value);
+	}
+}
@@ -0,0 +1,150 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Member;
+import edu.internet2.middleware.grouper.internal.dao.QueryOptions;
+
+
+/**
+ * Reads the person members of a group a page at a time, sorted by subject
+ * id, keeping only their subject ids. Only one page of members is loaded
+ * at once, however big the group is.
+ */
+public class GroupMemberPager {
+
+	private final Group group;
+	private final int pageSize;
+	private int pageNumber = 0;
+	private boolean done = false;
+	private int count = 0;
+
+
+	public GroupMemberPager(Group group, int pageSize) {
+		this.group = group;
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * The subject ids of the person members on the next page, or null after
+	 * the last page. A page can be empty if it held no people.
+	 */
+	public List<String> nextPage() {
+		if (done) {
+			return null;
+		}
+		pageNumber++;
+		QueryOptions queryOptions = new QueryOptions()
+				.paging(pageSize, pageNumber, false)
+				.sortAsc("m.subjectIdDb");
+		Set<Member> members = group.getMembers(Group.getDefaultList(), queryOptions);
+		if (members.size() < pageSize) {
+			done = true;
+		}
+
+		List<String> subjectIds = new ArrayList<String>(members.size());
+		for (Member member : members) {
+			if ("person".equals(member.getSubjectTypeId())) {
+				subjectIds.add(member.getSubjectId());
+			}
+		}
+		count += subjectIds.size();
+		return subjectIds;
+	}
+
+	/**
+	 * People read so far.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+
+	/**
+	 * The person members of a group as a message's member source. Every
+	 * iteration pages through the group again, so a message can be encoded
+	 * for several formats. The first complete pass also feeds the digest and
+	 * sets the count.
+	 */
+	public static class Members implements Iterable<String> {
+
+		private final Group group;
+		private final int pageSize;
+		private final GroupDigest digest;
+		private int count = -1;
+
+
+		/**
+		 * @param digest null if none is kept
+		 */
+		public Members(Group group, int pageSize, GroupDigest digest) {
+			this.group = group;
+			this.pageSize = pageSize;
+			this.digest = digest;
+		}
+
+		/**
+		 * People in the group, or -1 before the first complete pass.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		public Iterator<String> iterator() {
+			final GroupMemberPager pager = new GroupMemberPager(group, pageSize);
+			final boolean first = count < 0;
+			return new Iterator<String>() {
+
+				private Iterator<String> page = Collections.<String>emptyList().iterator();
+
+				public boolean hasNext() {
+					while (!page.hasNext()) {
+						List<String> next = pager.nextPage();
+						if (next == null) {
+							if (first && count < 0) {
+								count = pager.getCount();
+							}
+							return false;
+						}
+						page = next.iterator();
+					}
+					return true;
+				}
+
+				public String next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					String subjectId = page.next();
+					if (first && digest != null) {
+						digest.add(subjectId);
+					}
+					return subjectId;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
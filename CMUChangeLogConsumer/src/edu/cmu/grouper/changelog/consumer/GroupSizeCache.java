@@ -0,0 +1,145 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.internal.dao.QueryOptions;
+
+
+/**
+ * Member counts of groups, for checks against maxMembers. A count is read
+ * with a count-only query, so the member set is never loaded.
+ *
+ * A count read while processing a batch includes every membership change
+ * up to the batch's last sequence, and possibly later ones that are already
+ * committed. So a membership entry after that batch can't be applied to the
+ * count without perhaps counting it twice; it drops the count instead, and
+ * the group is counted again when next needed.
+ */
+public class GroupSizeCache {
+
+	private final int maxSize;
+	private final long maxAgeMillis;
+	private final LinkedHashMap<String, GroupSize> sizes;
+	// Highest sequence the database is known to reflect
+	private long horizon = -1;
+
+	private long queries = 0;
+	private long invalidations = 0;
+
+
+	/**
+	 * @param maxSize most groups to hold
+	 * @param maxAgeSeconds how long a count is trusted before it is read again, 0 for no limit
+	 */
+	public GroupSizeCache(int maxSize, int maxAgeSeconds) {
+		this.maxSize = Math.max(1, maxSize);
+		this.maxAgeMillis = maxAgeSeconds * 1000L;
+		this.sizes = new LinkedHashMap<String, GroupSize>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, GroupSize> eldest) {
+				return size() > GroupSizeCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Set the last sequence of the batch being processed. Counts read from
+	 * now on already include every entry up to it.
+	 */
+	public synchronized void setHorizon(long sequence) {
+		horizon = Math.max(horizon, sequence);
+	}
+
+	/**
+	 * The number of members of the group's members list.
+	 */
+	public int getSize(Group group) {
+		long asOfSequence;
+		synchronized (this) {
+			GroupSize size = sizes.get(group.getName());
+			if (size != null && (maxAgeMillis <= 0
+					|| System.currentTimeMillis() - size.loadedAt <= maxAgeMillis)) {
+				return size.count;
+			}
+			asOfSequence = horizon;
+		}
+
+		// Count outside the lock so threads can count different groups at once
+		QueryOptions queryOptions = new QueryOptions().retrieveCount(true).retrieveResults(false);
+		group.getMembers(Group.getDefaultList(), queryOptions);
+		int count = queryOptions.getCount().intValue();
+
+		synchronized (this) {
+			sizes.put(group.getName(), new GroupSize(count, asOfSequence));
+			queries++;
+		}
+		return count;
+	}
+
+	/**
+	 * Drop the group's count if a membership change at this sequence may not
+	 * be in it.
+	 */
+	public synchronized void membershipChanged(String groupName, long sequence) {
+		GroupSize size = groupName == null ? null : sizes.get(groupName);
+		if (size != null && sequence > size.asOfSequence) {
+			sizes.remove(groupName);
+			invalidations++;
+		}
+	}
+
+	public synchronized void invalidate(String groupName) {
+		if (groupName != null) {
+			sizes.remove(groupName);
+		}
+	}
+
+	public synchronized void clear() {
+		sizes.clear();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "size=" + sizes.size() + "/" + maxSize + " queries=" + queries
+				+ " invalidations=" + invalidations;
+	}
+
+
+	private static class GroupSize {
+		final int count;
+		// Last sequence the count is known to include
+		final long asOfSequence;
+		final long loadedAt;
+
+		GroupSize(int count, long asOfSequence) {
+			this.count = count;
+			this.asOfSequence = asOfSequence;
+			this.loadedAt = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.internet2.middleware.grouper.GrouperSession;
+
+
+/**
+ * Runs tasks on a fixed number of threads, keeping the tasks of each key in
+ * the order they were submitted. Every key always goes to the same thread,
+ * so tasks with different keys run in parallel and tasks with the same key
+ * never do. Each thread has its own Grouper session.
+ */
+public class KeyedDispatcher {
+
+	// The session of the lane running on this thread
+	private static final ThreadLocal<GrouperSession> laneSession = new ThreadLocal<GrouperSession>();
+
+	private final String name;
+	private final ExecutorService[] lanes;
+	private final AtomicLong submitted = new AtomicLong();
+
+
+	/**
+	 * @param name prefix of the thread names
+	 * @param threads number of threads, at least 1
+	 */
+	public KeyedDispatcher(String name, int threads) {
+		this.name = name;
+		this.lanes = new ExecutorService[Math.max(1, threads)];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = Executors.newSingleThreadExecutor(new LaneThreadFactory(name + "-" + i));
+		}
+	}
+
+	/**
+	 * Run the task after every task submitted earlier with the same key.
+	 */
+	public <T> Future<T> submit(String key, Callable<T> task) {
+		submitted.incrementAndGet();
+		return lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length].submit(task);
+	}
+
+	/**
+	 * The Grouper session of the lane the calling thread belongs to, or null
+	 * if it isn't a lane thread.
+	 */
+	public static GrouperSession laneSession() {
+		return laneSession.get();
+	}
+
+	public int getThreads() {
+		return lanes.length;
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * Stop the threads once their queued tasks are done.
+	 */
+	public void shutdown() {
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + " threads=" + lanes.length + " submitted=" + submitted.get();
+	}
+
+
+	/**
+	 * Daemon threads that keep a root Grouper session while they run.
+	 */
+	private static class LaneThreadFactory implements ThreadFactory {
+
+		private final String threadName;
+
+		LaneThreadFactory(String threadName) {
+			this.threadName = threadName;
+		}
+
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					GrouperSession session = null;
+					try {
+						session = GrouperSession.startRootSession();
+						laneSession.set(session);
+						runnable.run();
+					} finally {
+						laneSession.remove();
+						GrouperSession.stopQuietly(session);
+					}
+				}
+			}, threadName);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Consecutive member changes of one kind to one group, waiting to be sent
+ * as a single bulk message. The single member message is kept for each one
+ * so a buffer holding one change can be sent as before.
+ */
+public class MemberBuffer {
+
+	private String operation = null;
+	private String groupName = null;
+	private final List<String> members = new ArrayList<String>();
+	private final List<ProvisioningMessage> messages = new ArrayList<ProvisioningMessage>();
+	// Distinct sequences the buffered changes came from, in order
+	private final List<Long> sequences = new ArrayList<Long>();
+
+
+	/**
+	 * Whether a change can be added without sending the buffer first.
+	 */
+	public boolean accepts(String operation, String groupName) {
+		return members.isEmpty()
+				|| (this.operation.equals(operation) && this.groupName.equals(groupName));
+	}
+
+	/**
+	 * @return true if this is the first change buffered for the sequence
+	 */
+	public boolean add(String operation, String groupName, String member,
+			ProvisioningMessage message, long sequence) {
+		this.operation = operation;
+		this.groupName = groupName;
+		members.add(member);
+		messages.add(message);
+		if (sequences.isEmpty() || sequences.get(sequences.size() - 1) != sequence) {
+			sequences.add(sequence);
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getGroupName() {
+		return groupName;
+	}
+
+	public List<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * The single member message for the first buffered change.
+	 */
+	public ProvisioningMessage getFirstMessage() {
+		return messages.get(0);
+	}
+
+	public long getFirstSequence() {
+		return sequences.get(0);
+	}
+
+	public List<Long> getSequences() {
+		return sequences;
+	}
+
+	public void clear() {
+		operation = null;
+		groupName = null;
+		members.clear();
+		messages.clear();
+		sequences.clear();
+	}
+}
@@ -0,0 +1,248 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.Member;
+import edu.internet2.middleware.grouper.MemberFinder;
+import edu.internet2.middleware.grouper.misc.GrouperDAOFactory;
+
+
+/**
+ * Bounded cache of the member fields change log entries need, keyed by
+ * member uuid. It is kept across batches and the least recently used member
+ * is evicted when it is full. Members that don't exist are not cached.
+ * Members prefetched for a batch are held apart until the next prefetch, so
+ * a batch with more members than the cache holds doesn't evict its own.
+ * Lookups query outside the lock, so dispatch lanes don't wait on each other.
+ */
+public class MemberCache {
+
+	// Ids per bulk query
+	private static final int BATCH_SIZE = 100;
+
+	private final int maxSize;
+	private final long maxAgeMillis;
+	private final LinkedHashMap<String, CachedMember> members;
+	// Members loaded for the current batch that weren't already cached
+	private Map<String, CachedMember> batchMembers = new HashMap<String, CachedMember>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	// Bumped by every invalidation, so a lookup that raced one isn't cached
+	private long generation = 0;
+
+
+	/**
+	 * @param maxSize most members to hold
+	 * @param maxAgeSeconds how long an entry stays valid, 0 for no limit
+	 */
+	public MemberCache(int maxSize, int maxAgeSeconds) {
+		this.maxSize = Math.max(1, maxSize);
+		this.maxAgeMillis = maxAgeSeconds * 1000L;
+		this.members = new LinkedHashMap<String, CachedMember>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedMember> eldest) {
+				if (size() > MemberCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * The member with this uuid, looked up if it is not cached, or null if
+	 * there is no such member.
+	 *
+	 * @param gs the calling thread's session, used if the member has to be looked up
+	 */
+	public CachedMember get(GrouperSession gs, String memberId) {
+		if (memberId == null) {
+			return null;
+		}
+		long lookupGeneration;
+		synchronized (this) {
+			CachedMember member = getCached(memberId);
+			if (member != null) {
+				return member;
+			}
+			lookupGeneration = generation;
+		}
+		Member found = MemberFinder.findByUuid(gs, memberId, false);
+		if (found == null) {
+			return null;
+		}
+		CachedMember member = new CachedMember(found);
+		synchronized (this) {
+			if (generation == lookupGeneration) {
+				members.put(memberId, member);
+			}
+		}
+		return member;
+	}
+
+	// The cached member, counting the hit or miss
+	private CachedMember getCached(String memberId) {
+		CachedMember member = members.get(memberId);
+		if (member == null) {
+			// Kept for later batches once the batch has used it
+			member = batchMembers.get(memberId);
+			if (member != null) {
+				members.put(memberId, member);
+			}
+		}
+		if (member != null && maxAgeMillis > 0
+				&& System.currentTimeMillis() - member.loadedAt > maxAgeMillis) {
+			members.remove(memberId);
+			batchMembers.remove(memberId);
+			member = null;
+		}
+		if (member != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return member;
+	}
+
+	/**
+	 * Load the members that aren't cached yet with bulk queries. Every
+	 * member of the batch is kept until the next prefetch, whatever the size
+	 * of the cache.
+	 */
+	public synchronized void prefetch(Collection<String> memberIds) {
+		batchMembers = new HashMap<String, CachedMember>();
+		List<String> missing = new ArrayList<String>();
+		for (String memberId : memberIds) {
+			if (memberId == null) {
+				continue;
+			}
+			CachedMember cached = members.get(memberId);
+			if (cached != null) {
+				batchMembers.put(memberId, cached);
+			} else {
+				missing.add(memberId);
+			}
+		}
+		for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+			for (Member found : GrouperDAOFactory.getFactory().getMember().findByIds(
+					missing.subList(i, Math.min(missing.size(), i + BATCH_SIZE)), null)) {
+				batchMembers.put(found.getUuid(), new CachedMember(found));
+			}
+		}
+	}
+
+	public synchronized void invalidate(String memberId) {
+		if (memberId != null) {
+			generation++;
+			members.remove(memberId);
+			batchMembers.remove(memberId);
+		}
+	}
+
+	/**
+	 * Drop members known by this name, such as a renamed group.
+	 */
+	public synchronized void invalidateName(String name) {
+		if (name == null) {
+			return;
+		}
+		generation++;
+		for (Map<String, CachedMember> map : Arrays.asList(members, batchMembers)) {
+			Iterator<CachedMember> cached = map.values().iterator();
+			while (cached.hasNext()) {
+				if (name.equals(cached.next().name)) {
+					cached.remove();
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		generation++;
+		members.clear();
+		batchMembers.clear();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return "size=" + members.size() + "/" + maxSize + " hits=" + hits
+				+ " misses=" + misses + " evictions=" + evictions
+				+ " hitRate=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%";
+	}
+
+
+	/**
+	 * The fields of a member sent downstream. The name is only kept for
+	 * subjects that aren't people, as people are always sent by subject id
+	 * and resolving their name can mean a call to the subject source.
+	 */
+	public static class CachedMember {
+
+		private final String subjectId;
+		private final String subjectType;
+		private final String name;
+		private final long loadedAt;
+
+		CachedMember(Member member) {
+			this.subjectId = member.getSubjectId();
+			this.subjectType = member.getSubjectTypeId();
+			this.name = "person".equals(subjectType) ? null : member.getName();
+			this.loadedAt = System.currentTimeMillis();
+		}
+
+		public String getSubjectId() {
+			return subjectId;
+		}
+
+		public String getSubjectType() {
+			return subjectType;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
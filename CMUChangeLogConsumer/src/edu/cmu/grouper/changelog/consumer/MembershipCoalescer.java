@@ -0,0 +1,123 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
+
+
+/**
+ * Finds membership entries in a batch that cancel each other out. For each
+ * group, member and list, adds and deletes alternate, so an even number of
+ * them leaves the membership unchanged and an odd number is the same as the
+ * last one alone. Only those runs are coalesced that have no other kind of
+ * entry between them, so renames, deletes and attribute changes keep their
+ * order relative to the memberships. Privilege entries don't affect
+ * memberships and don't break a run.
+ */
+public class MembershipCoalescer {
+
+	private long entries = 0;
+	private long skippedEntries = 0;
+
+
+	/**
+	 * The sequence numbers of the membership entries that need not be sent.
+	 */
+	public Set<Long> coalesce(List<ChangeLogEntry> changeLogEntryList) {
+		Set<Long> skip = new HashSet<Long>();
+		// Sequences of each membership in the current run, in order
+		Map<String, List<Long>> run = new LinkedHashMap<String, List<Long>>();
+
+		for (ChangeLogEntry entry : changeLogEntryList) {
+			String key = null;
+			if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+				key = key(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName),
+						entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.memberId),
+						entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.fieldName));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+				key = key(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName),
+						entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.memberId),
+						entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.fieldName));
+			} else if (entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_ADD)
+					|| entry.equalsCategoryAndAction(ChangeLogTypeBuiltin.PRIVILEGE_DELETE)) {
+				continue;
+			} else {
+				flush(run, skip);
+				continue;
+			}
+
+			if (key == null) {
+				continue;
+			}
+			List<Long> sequences = run.get(key);
+			if (sequences == null) {
+				sequences = new ArrayList<Long>();
+				run.put(key, sequences);
+			}
+			sequences.add(entry.getSequenceNumber());
+		}
+		flush(run, skip);
+
+		synchronized (this) {
+			entries += changeLogEntryList.size();
+			skippedEntries += skip.size();
+		}
+		return skip;
+	}
+
+	public synchronized long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Membership entries skipped since this coalescer was created. This
+	 * counts change log entries, not messages: an entry for an eligible group
+	 * would have been sent to every target, and once for each sync type.
+	 */
+	public synchronized long getSkippedEntries() {
+		return skippedEntries;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "entries=" + entries + " skippedEntries=" + skippedEntries;
+	}
+
+	// Keep only the last entry of an odd run and none of an even one
+	private static void flush(Map<String, List<Long>> run, Set<Long> skip) {
+		for (List<Long> sequences : run.values()) {
+			int keep = sequences.size() % 2 == 0 ? sequences.size() : sequences.size() - 1;
+			for (int i = 0; i < keep; i++) {
+				skip.add(sequences.get(i));
+			}
+		}
+		run.clear();
+	}
+
+	private static String key(String groupName, String memberId, String fieldName) {
+		if (groupName == null || memberId == null) {
+			return null;
+		}
+		return groupName + "|" + memberId + "|" + fieldName;
+	}
+}
@@ -0,0 +1,49 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+
+/**
+ * Turns provisioning messages into the format a target reads. A codec
+ * implements Text to be sent as TextMessages or Binary to be sent as
+ * BytesMessages. Every message carries the codec's format name in its
+ * messageFormat property. Implementations must be thread safe; custom ones
+ * are named by class in the messageFormat settings and need a public no
+ * argument constructor.
+ */
+public interface MessageCodec {
+
+	/**
+	 * Name of the format, such as xml, json or binary.
+	 */
+	String getFormat();
+
+
+	/**
+	 * A format sent as a TextMessage.
+	 */
+	interface Text extends MessageCodec {
+
+		String encodeText(ProvisioningMessage message);
+	}
+
+
+	/**
+	 * A format sent as a BytesMessage.
+	 */
+	interface Binary extends MessageCodec {
+
+		byte[] encodeBytes(ProvisioningMessage message);
+	}
+}
@@ -0,0 +1,62 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Finds the codec for a messageFormat setting: xml, json, binary or the
+ * class name of a custom MessageCodec.
+ */
+public class MessageCodecs {
+
+	// Custom codecs by class name, created once
+	private static final Map<String, MessageCodec> custom = new HashMap<String, MessageCodec>();
+
+
+	private MessageCodecs() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the format is unknown or its class
+	 * can't be created or isn't a MessageCodec.Text or MessageCodec.Binary
+	 */
+	public static synchronized MessageCodec forFormat(String format) {
+		if (format.equalsIgnoreCase("xml")) {
+			return TextMessageCodec.XML;
+		}
+		if (format.equalsIgnoreCase("json")) {
+			return TextMessageCodec.JSON;
+		}
+		if (format.equalsIgnoreCase("binary")) {
+			return BinaryMessageCodec.INSTANCE;
+		}
+		MessageCodec codec = custom.get(format);
+		if (codec == null) {
+			try {
+				codec = (MessageCodec) Class.forName(format).newInstance();
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Unknown message format " + format, e);
+			}
+			if (!(codec instanceof MessageCodec.Text) && !(codec instanceof MessageCodec.Binary)) {
+				throw new IllegalArgumentException("Message format " + format
+						+ " implements neither MessageCodec.Text nor MessageCodec.Binary");
+			}
+			custom.put(format, codec);
+		}
+		return codec;
+	}
+}
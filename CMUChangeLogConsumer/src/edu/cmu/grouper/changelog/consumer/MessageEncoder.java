@@ -0,0 +1,203 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+
+/**
+ * Writes a message in XML or JSON straight into a buffer that is reused by
+ * the thread, so large member lists are encoded in one pass without
+ * building intermediate strings or JSON objects.
+ *
+ * XML values are written as CDATA sections and JSON values as escaped
+ * strings. Fields are written in the order they are given.
+ */
+public class MessageEncoder {
+
+	// Buffers that grew past this are not kept for reuse
+	private static final int MAX_RETAINED = 4 * 1024 * 1024;
+
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(1024);
+		}
+	};
+
+	private final boolean xml;
+	private final StringBuilder out;
+	private String listName = null;
+	private boolean firstField = true;
+	private boolean firstMember = true;
+
+
+	private MessageEncoder(boolean xml, StringBuilder out) {
+		this.xml = xml;
+		this.out = out;
+	}
+
+	/**
+	 * Start a message in this thread's buffer.
+	 */
+	public static MessageEncoder start(boolean xml) {
+		StringBuilder out = BUFFER.get();
+		out.setLength(0);
+		MessageEncoder encoder = new MessageEncoder(xml, out);
+		if (!xml) {
+			out.append('{');
+		}
+		return encoder;
+	}
+
+	public MessageEncoder operation(String operation) {
+		if (xml) {
+			out.append("<operation>").append(operation).append("</operation>");
+		} else {
+			jsonName("operation");
+			jsonString(operation);
+		}
+		return this;
+	}
+
+	public MessageEncoder field(String name, String value) {
+		if (xml) {
+			out.append('<').append(name).append('>');
+			cdata(value);
+			out.append("</").append(name).append('>');
+		} else {
+			jsonName(name);
+			jsonString(value);
+		}
+		return this;
+	}
+
+	public MessageEncoder beginList(String name) {
+		listName = name;
+		firstMember = true;
+		if (xml) {
+			out.append('<').append(name).append('>');
+		} else {
+			jsonName(name);
+			out.append('[');
+		}
+		return this;
+	}
+
+	public MessageEncoder member(String value) {
+		if (xml) {
+			out.append("<member>");
+			cdata(value);
+			out.append("</member>");
+		} else {
+			if (!firstMember) {
+				out.append(',');
+			}
+			jsonString(value);
+		}
+		firstMember = false;
+		return this;
+	}
+
+	public MessageEncoder endList() {
+		if (xml) {
+			out.append("</").append(listName).append('>');
+		} else {
+			out.append(']');
+		}
+		listName = null;
+		return this;
+	}
+
+	/**
+	 * The finished message. The buffer is reused by the next message started
+	 * on this thread.
+	 */
+	public String finish() {
+		if (!xml) {
+			out.append('}');
+		}
+		String message = out.toString();
+		if (out.capacity() > MAX_RETAINED) {
+			BUFFER.remove();
+		}
+		return message;
+	}
+
+	// A CDATA section can't contain "]]>", so it is split across two sections
+	private void cdata(String value) {
+		String text = String.valueOf(value);
+		out.append("<![CDATA[");
+		int start = 0;
+		int end;
+		while ((end = text.indexOf("]]>", start)) >= 0) {
+			out.append(text, start, end + 2).append("]]><![CDATA[");
+			start = end + 2;
+		}
+		out.append(text, start, text.length()).append("]]>");
+	}
+
+	private void jsonName(String name) {
+		if (!firstField) {
+			out.append(',');
+		}
+		firstField = false;
+		jsonString(name);
+		out.append(':');
+	}
+
+	private void jsonString(String value) {
+		if (value == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\b':
+				out.append("\\b");
+				break;
+			case '\f':
+				out.append("\\f");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					String hex = Integer.toHexString(c);
+					out.append("\\u");
+					for (int pad = hex.length(); pad < 4; pad++) {
+						out.append('0');
+					}
+					out.append(hex);
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+}
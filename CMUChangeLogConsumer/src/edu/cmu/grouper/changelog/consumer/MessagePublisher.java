@@ -0,0 +1,517 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.AsyncCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Long-lived ActiveMQ publisher. One connection is kept per consumer, broker
+ * URL and user across change log runs, with a cached session and producer per
+ * target queue. A broken connection is detected and rebuilt on next use.
+ * In transacted mode sends are held by the broker until commit().
+ * Sends to different targets may run on different threads; each target's
+ * session is only used by one thread at a time.
+ * Messages of at least the compression threshold are sent as gzipped
+ * BytesMessages with a contentEncoding property of gzip, and those encoded
+ * by a codec name it in a messageFormat property.
+ */
+public class MessagePublisher implements ExceptionListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	/** Message property naming the encoding of a compressed body */
+	public static final String CONTENT_ENCODING = "contentEncoding";
+	/** Message property naming the codec format, such as xml, json or binary */
+	public static final String MESSAGE_FORMAT = "messageFormat";
+
+	// Publishers by consumerName/username@brokerURL
+	private static final Map<String, MessagePublisher> publishers = new HashMap<String, MessagePublisher>();
+
+	private final String brokerURL;
+	private final String username;
+	private final String password;
+	private ActiveMQConnectionFactory connectionFactory;
+	private Connection connection;
+	// Session and producer for each target queue
+	private final Map<String, TargetChannel> channels = new HashMap<String, TargetChannel>();
+	private volatile boolean failed = false;
+	private boolean transacted = false;
+	// True while sends are waiting for commit or rollback
+	private volatile boolean inTransaction = false;
+	// Concurrent publishing to several targets, started on first use
+	private TargetFanOut fanOut;
+	// Smallest UTF-8 size in bytes to compress, 0 for never
+	private volatile int compressThreshold = 0;
+	private final AtomicLong compressedMessages = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+
+	private MessagePublisher(String brokerURL, String username, String password) {
+		this.brokerURL = brokerURL;
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * Get the publisher for this consumer, broker and user, creating it if
+	 * needed. Consumers never share one, so their transactions stay apart.
+	 * A publisher whose password has changed is closed and replaced.
+	 */
+	public static synchronized MessagePublisher getInstance(String consumerName,
+			String brokerURL, String username, String password) {
+		String key = consumerName + "/" + username + "@" + brokerURL;
+		MessagePublisher publisher = publishers.get(key);
+
+		if (publisher != null && !equal(publisher.password, password)) {
+			LOG.info("Credentials changed for {}, replacing ActiveMQ connection", key);
+			publisher.close();
+			publisher = null;
+		}
+		if (publisher == null) {
+			publisher = new MessagePublisher(brokerURL, username, password);
+			publishers.put(key, publisher);
+		}
+		return publisher;
+	}
+
+	/**
+	 * Create a publisher with its own connection that isn't shared. The
+	 * caller must close it.
+	 */
+	public static MessagePublisher create(String brokerURL, String username, String password) {
+		return new MessagePublisher(brokerURL, username, password);
+	}
+
+	/**
+	 * Close every publisher. Used when a standalone full sync exits.
+	 */
+	public static synchronized void closeAll() {
+		for (MessagePublisher publisher : publishers.values()) {
+			publisher.close();
+		}
+		publishers.clear();
+	}
+
+	/**
+	 * Make sure there is a healthy, started connection, reconnecting if the
+	 * previous one failed or was closed.
+	 */
+	public synchronized void connect() throws JMSException {
+		if (isHealthy()) {
+			return;
+		}
+		if (connection != null) {
+			LOG.info("ActiveMQ connection to {} is unhealthy, reconnecting", brokerURL);
+			reset();
+		}
+		if (connectionFactory == null) {
+			connectionFactory = new ActiveMQConnectionFactory(username, password, brokerURL);
+		}
+		Connection newConnection = connectionFactory.createConnection();
+		try {
+			newConnection.setExceptionListener(this);
+			newConnection.start();
+		} catch (JMSException e) {
+			closeQuietly(newConnection);
+			throw e;
+		}
+		connection = newConnection;
+		failed = false;
+		LOG.debug("Connected to ActiveMQ {}", brokerURL);
+	}
+
+	/**
+	 * Health check: the connection exists, has not reported an exception and
+	 * its transport is still up.
+	 */
+	public synchronized boolean isHealthy() {
+		if (connection == null || failed) {
+			return false;
+		}
+		if (connection instanceof ActiveMQConnection) {
+			ActiveMQConnection amqConnection = (ActiveMQConnection) connection;
+			return !amqConnection.isClosed() && !amqConnection.isClosing()
+					&& !amqConnection.isTransportFailed();
+		}
+		return true;
+	}
+
+	/**
+	 * Switch between transacted and auto acknowledge sessions. Open sessions
+	 * are closed when the mode changes.
+	 */
+	public synchronized void setTransacted(boolean transacted) {
+		if (this.transacted != transacted) {
+			closeChannels();
+			this.transacted = transacted;
+		}
+	}
+
+	public synchronized boolean isTransacted() {
+		return transacted;
+	}
+
+	/**
+	 * @param compressThreshold smallest message in bytes to gzip, 0 to send
+	 * every message as text
+	 */
+	public void setCompressThreshold(int compressThreshold) {
+		this.compressThreshold = compressThreshold;
+	}
+
+	/**
+	 * Build the body for a message once, compressing it if it is large
+	 * enough, so it can be sent to several targets.
+	 */
+	public Payload prepare(String text) throws JMSException {
+		return prepare(text, null);
+	}
+
+	/**
+	 * Encode a message with the target's codec and build its body.
+	 */
+	public Payload prepare(ProvisioningMessage message, MessageCodec codec) throws JMSException {
+		if (codec instanceof MessageCodec.Text) {
+			return prepare(((MessageCodec.Text) codec).encodeText(message), codec.getFormat());
+		}
+		byte[] raw = ((MessageCodec.Binary) codec).encodeBytes(message);
+		int threshold = compressThreshold;
+		byte[] gzipped = threshold > 0 && raw.length >= threshold ? gzip(raw) : null;
+		return gzipped == null ? new Payload(null, raw, false, codec.getFormat())
+				: new Payload(null, gzipped, true, codec.getFormat());
+	}
+
+	private Payload prepare(String text, String format) throws JMSException {
+		int threshold = compressThreshold;
+		// A char is at most 3 bytes in UTF-8, so short text needs no encoding
+		if (threshold <= 0 || text.length() * 3L < threshold) {
+			return new Payload(text, null, false, format);
+		}
+		try {
+			byte[] raw = text.getBytes("UTF-8");
+			byte[] gzipped = raw.length >= threshold ? gzip(raw) : null;
+			return gzipped == null ? new Payload(text, null, false, format)
+					: new Payload(null, gzipped, true, format);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// The gzipped bytes, or null if they aren't smaller
+	private byte[] gzip(byte[] raw) throws JMSException {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(raw.length / 4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+			gzip.write(raw);
+			gzip.close();
+			if (buffer.size() >= raw.length) {
+				return null;
+			}
+			compressedMessages.incrementAndGet();
+			uncompressedBytes.addAndGet(raw.length);
+			compressedBytes.addAndGet(buffer.size());
+			return buffer.toByteArray();
+		} catch (IOException e) {
+			JMSException jmsException = new JMSException("Could not compress message: " + e.getMessage());
+			jmsException.setLinkedException(e);
+			throw jmsException;
+		}
+	}
+
+	/**
+	 * Compression counts since the publisher was created.
+	 */
+	public String getCompressionStats() {
+		long before = uncompressedBytes.get();
+		long after = compressedBytes.get();
+		return "compressed=" + compressedMessages.get() + " bytesIn=" + before
+				+ " bytesOut=" + after + " ratio=" + (before == 0 ? "n/a"
+						: String.format("%.2f", (double) after / before));
+	}
+
+	/**
+	 * Send a persistent text message to the target queue. If the send fails
+	 * the connection is rebuilt and the send is tried once more. In
+	 * transacted mode the failure is thrown instead, since reconnecting
+	 * would silently drop the rest of the open transaction.
+	 */
+	public void send(String targetQueue, String text,
+			String jmsxGroupId) throws JMSException {
+		send(targetQueue, prepare(text), jmsxGroupId);
+	}
+
+	public void send(String targetQueue, Payload payload,
+			String jmsxGroupId) throws JMSException {
+		TargetChannel channel = openChannel(targetQueue);
+		try {
+			channel.send(payload, jmsxGroupId);
+			if (channel.transacted) {
+				inTransaction = true;
+			}
+		} catch (JMSException e) {
+			if (channel.transacted) {
+				failed = true;
+				throw e;
+			}
+			LOG.warn("Send to {} failed, reconnecting and retrying: {}", targetQueue, e.getMessage());
+			synchronized (this) {
+				// Another target may already have rebuilt the connection
+				if (channels.get(targetQueue) == channel) {
+					reset();
+				}
+			}
+			openChannel(targetQueue).send(payload, jmsxGroupId);
+		}
+	}
+
+	/**
+	 * Send a persistent text message without waiting for the broker. The
+	 * callback is told when the broker has stored the message or rejected it.
+	 * Failures are not retried; the caller decides what to resend.
+	 */
+	public void sendAsync(String targetQueue, Payload payload,
+			String jmsxGroupId, AsyncCallback callback) throws JMSException {
+		try {
+			openChannel(targetQueue).sendAsync(payload, jmsxGroupId, callback);
+		} catch (JMSException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Commit the open transaction on every target session.
+	 */
+	public synchronized void commit() throws JMSException {
+		if (!transacted) {
+			return;
+		}
+		try {
+			for (TargetChannel channel : channels.values()) {
+				channel.commit();
+			}
+			inTransaction = false;
+		} catch (JMSException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Roll back the open transaction on every target session. If that is not
+	 * possible the connection is dropped, which discards the transaction.
+	 */
+	public synchronized void rollback() {
+		if (!transacted) {
+			return;
+		}
+		inTransaction = false;
+		try {
+			for (TargetChannel channel : channels.values()) {
+				channel.rollback();
+			}
+		} catch (Exception e) {
+			LOG.warn("Rollback failed, dropping ActiveMQ connection: {}", e.getMessage());
+			reset();
+		}
+	}
+
+	/**
+	 * Fan-out stage that sends to several targets concurrently through this publisher.
+	 */
+	public synchronized TargetFanOut getFanOut() {
+		if (fanOut == null) {
+			fanOut = new TargetFanOut(this);
+		}
+		return fanOut;
+	}
+
+	/**
+	 * Close all sessions and the connection. The publisher reconnects on next use.
+	 */
+	public synchronized void close() {
+		if (fanOut != null) {
+			fanOut.shutdown();
+			fanOut = null;
+		}
+		reset();
+		connectionFactory = null;
+	}
+
+	public void onException(JMSException e) {
+		LOG.error("ActiveMQ connection to {} reported an error: {}", brokerURL, e.getMessage());
+		failed = true;
+	}
+
+	// Connect if needed and get the channel for this target
+	private synchronized TargetChannel openChannel(String targetQueue) throws JMSException {
+		if (inTransaction && !isHealthy()) {
+			throw new JMSException("ActiveMQ connection to " + brokerURL
+					+ " was lost with an open transaction");
+		}
+		connect();
+		TargetChannel channel = channels.get(targetQueue);
+		if (channel == null) {
+			channel = new TargetChannel(connection, targetQueue, transacted);
+			channels.put(targetQueue, channel);
+		}
+		return channel;
+	}
+
+	private void closeChannels() {
+		inTransaction = false;
+		for (TargetChannel channel : channels.values()) {
+			channel.close();
+		}
+		channels.clear();
+	}
+
+	private void reset() {
+		closeChannels();
+		if (connection != null) {
+			closeQuietly(connection);
+			connection = null;
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (Exception e) {
+			LOG.debug("Error closing ActiveMQ connection: {}", e.getMessage());
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+
+	/**
+	 * Session and producer bound to one target queue.
+	 */
+	private static class TargetChannel {
+
+		private final Session session;
+		private final MessageProducer producer;
+		private final boolean transacted;
+
+		TargetChannel(Connection connection, String targetQueue, boolean transacted) throws JMSException {
+			this.transacted = transacted;
+			session = transacted ? connection.createSession(true, Session.SESSION_TRANSACTED)
+					: connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			Destination destination = session.createQueue(targetQueue);
+			producer = session.createProducer(destination);
+			producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+		}
+
+		synchronized void send(Payload payload, String jmsxGroupId) throws JMSException {
+			producer.send(createMessage(payload, jmsxGroupId));
+		}
+
+		synchronized void sendAsync(Payload payload, String jmsxGroupId, AsyncCallback callback) throws JMSException {
+			((ActiveMQMessageProducer) producer).send(createMessage(payload, jmsxGroupId), callback);
+		}
+
+		private Message createMessage(Payload payload, String jmsxGroupId) throws JMSException {
+			Message message;
+			if (payload.body == null) {
+				message = session.createTextMessage(payload.text);
+			} else {
+				BytesMessage bytesMessage = session.createBytesMessage();
+				bytesMessage.writeBytes(payload.body);
+				if (payload.gzipped) {
+					bytesMessage.setStringProperty(CONTENT_ENCODING, "gzip");
+				}
+				message = bytesMessage;
+			}
+			if (payload.format != null) {
+				message.setStringProperty(MESSAGE_FORMAT, payload.format);
+			}
+			message.setStringProperty("JMSXGroupID", jmsxGroupId);
+			return message;
+		}
+
+		synchronized void commit() throws JMSException {
+			session.commit();
+		}
+
+		synchronized void rollback() throws JMSException {
+			session.rollback();
+		}
+
+		synchronized void close() {
+			try {
+				producer.close();
+			} catch (Exception e) {
+				LOG.debug("Error closing ActiveMQ producer: {}", e.getMessage());
+			}
+			try {
+				session.close();
+			} catch (Exception e) {
+				LOG.debug("Error closing ActiveMQ session: {}", e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * A message body ready to send, as text or as bytes that are gzipped or
+	 * in a binary format.
+	 */
+	public static class Payload {
+
+		private final String text;
+		private final byte[] body;
+		private final boolean gzipped;
+		private final String format;
+
+		Payload(String text, byte[] body, boolean gzipped, String format) {
+			this.text = text;
+			this.body = body;
+			this.gzipped = gzipped;
+			this.format = format;
+		}
+
+		public boolean isCompressed() {
+			return gzipped;
+		}
+	}
+}
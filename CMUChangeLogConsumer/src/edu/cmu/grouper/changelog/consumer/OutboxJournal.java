@@ -0,0 +1,393 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Write-ahead outbox of messages on local disk. Messages are appended to a
+ * memory-mapped journal of fixed size and a background drainer publishes
+ * them in order, so change log processing goes on while the broker is away.
+ * Delivery is at least once: after a crash, messages whose publishing wasn't
+ * recorded are published again.
+ * <p>
+ * The file starts with a header of a magic number, the offset of the first
+ * unpublished record and the end of the records written by sync(). Each
+ * record is its length, the length of its JMSXGroupID, the JMSXGroupID in
+ * UTF-8 and the message in the binary message format. The journal is reset to empty whenever the drainer
+ * catches up, and is compacted when full if the published space before the
+ * first record can hold the rest.
+ * <p>
+ * A record that fails for any reason other than the broker being unavailable
+ * is tried MAX_ATTEMPTS times, then appended in the same record format to a
+ * dead letter file next to the journal, named after it with a .dead suffix,
+ * so the records behind it are not held up.
+ */
+public class OutboxJournal {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	private static final int MAGIC = 0x4f425831;
+	private static final int HEAD_OFFSET = 8;
+	private static final int TAIL_OFFSET = 16;
+	private static final int HEADER_SIZE = 24;
+	// Longest wait between attempts to publish while the broker is down
+	private static final long MAX_RETRY_MILLIS = 60000;
+	// Attempts at a record that fails while the broker is available
+	private static final int MAX_ATTEMPTS = 5;
+
+	private final File file;
+	private final File deadLetterFile;
+	private final RandomAccessFile journal;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	// Wait after the first failed attempt, doubled after each further one
+	private final long firstRetryMillis;
+	// First unpublished record and end of the last record
+	private int head;
+	private int tail;
+	private long appended = 0;
+	private long published = 0;
+	private long compactions = 0;
+	private long deadLetters = 0;
+	private Thread drainer;
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Publishes one message from the outbox.
+	 */
+	public interface Sender {
+
+		void send(String jmsxGroupId, byte[] message) throws Exception;
+
+		/**
+		 * Whether a send failed because the broker is unavailable, in which
+		 * case the record is retried for as long as it takes.
+		 */
+		boolean isTransient(Exception e);
+	}
+
+
+	/**
+	 * Open the journal, keeping any messages that were not published before
+	 * the last shutdown.
+	 *
+	 * @param maxBytes disk budget; an existing larger journal keeps its size
+	 */
+	public OutboxJournal(File file, long maxBytes) throws IOException {
+		this(file, maxBytes, 1000);
+	}
+
+	OutboxJournal(File file, long maxBytes, long firstRetryMillis) throws IOException {
+		this.file = file;
+		this.firstRetryMillis = firstRetryMillis;
+		this.deadLetterFile = new File(file.getPath() + ".dead");
+		journal = new RandomAccessFile(file, "rw");
+		long size = Math.max(Math.max(maxBytes, HEADER_SIZE + 1024L), journal.length());
+		capacity = (int) Math.min(size, Integer.MAX_VALUE);
+		buffer = journal.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+		long storedHead = buffer.getLong(HEAD_OFFSET);
+		long storedTail = buffer.getLong(TAIL_OFFSET);
+		if (buffer.getInt(0) == MAGIC && storedHead >= HEADER_SIZE
+				&& storedHead <= storedTail && storedTail <= capacity) {
+			head = (int) storedHead;
+			tail = (int) storedTail;
+			LOG.info("Opened outbox {} with {} bytes to publish", file, tail - head);
+		} else {
+			head = HEADER_SIZE;
+			tail = HEADER_SIZE;
+			buffer.putInt(0, MAGIC);
+			writeHeader();
+			buffer.force();
+			LOG.info("Created outbox {} of {} bytes", file, capacity);
+		}
+	}
+
+	/**
+	 * Start publishing the journal on a background thread.
+	 */
+	public synchronized void startDrainer(final Sender sender) {
+		if (drainer != null) {
+			return;
+		}
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drain(sender);
+			}
+		}, "grouper-outbox-drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Add a message to the end of the journal.
+	 *
+	 * @return false if the journal is full
+	 */
+	public synchronized boolean append(String jmsxGroupId, byte[] body) {
+		byte[] groupId = encode(jmsxGroupId);
+		int length = 4 + groupId.length + body.length;
+		int size = 4 + length;
+		if ((long) tail + size > capacity && !compact(size)) {
+			return false;
+		}
+		ByteBuffer record = buffer.duplicate();
+		record.position(tail);
+		record.putInt(length);
+		record.putInt(groupId.length);
+		record.put(groupId);
+		record.put(body);
+		tail += size;
+		appended++;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Write every appended message to disk. Appended messages can be
+	 * acknowledged once this returns.
+	 */
+	public synchronized void sync() {
+		buffer.force();
+		writeHeader();
+		buffer.force();
+	}
+
+	/**
+	 * Bytes of messages not yet published.
+	 */
+	public synchronized int getPendingBytes() {
+		return tail - head;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Stop the drainer and close the file. Unpublished messages stay in the
+	 * journal for the next open. A drainer still in a send after the grace
+	 * period is interrupted, and the file is only closed once it has stopped.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			thread = drainer;
+		}
+		if (thread != null) {
+			boolean interrupted = false;
+			try {
+				thread.join(MAX_RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+			while (thread.isAlive()) {
+				LOG.warn("Outbox {} drainer is still publishing, interrupting it", file);
+				thread.interrupt();
+				try {
+					thread.join(1000);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			sync();
+			try {
+				journal.close();
+			} catch (IOException e) {
+				LOG.debug("Error closing outbox {}: {}", file, e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "pending=" + (tail - head) + "/" + capacity + " bytes appended=" + appended
+				+ " published=" + published + " compactions=" + compactions + " deadLetters=" + deadLetters;
+	}
+
+	private void drain(Sender sender) {
+		long retryMillis = firstRetryMillis;
+		int attempts = 0;
+		while (true) {
+			String jmsxGroupId;
+			byte[] body;
+			synchronized (this) {
+				try {
+					while (head == tail && !closed) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed) {
+					return;
+				}
+				ByteBuffer record = buffer.duplicate();
+				record.position(head + 4);
+				byte[] groupId = new byte[record.getInt()];
+				record.get(groupId);
+				body = new byte[buffer.getInt(head) - 4 - groupId.length];
+				record.get(body);
+				jmsxGroupId = decode(groupId);
+			}
+
+			try {
+				sender.send(jmsxGroupId, body);
+				retryMillis = firstRetryMillis;
+				attempts = 0;
+			} catch (Exception e) {
+				synchronized (this) {
+					if (closed) {
+						return;
+					}
+				}
+				if (!sender.isTransient(e) && ++attempts >= MAX_ATTEMPTS) {
+					LOG.error("Outbox message for " + jmsxGroupId + " failed " + attempts
+							+ " times, moving it to " + deadLetterFile, e);
+					if (deadLetter(jmsxGroupId, body)) {
+						retryMillis = firstRetryMillis;
+						attempts = 0;
+						removeHead();
+						continue;
+					}
+				}
+				LOG.warn("Outbox publish failed, retrying in {} ms: {}", retryMillis, e.getMessage());
+				synchronized (this) {
+					try {
+						if (!closed) {
+							wait(retryMillis);
+						}
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+				retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+				continue;
+			}
+
+			synchronized (this) {
+				published++;
+			}
+			removeHead();
+		}
+	}
+
+	private synchronized void removeHead() {
+		// Relative, since a compaction may have moved the record while it was sent
+		head += 4 + buffer.getInt(head);
+		if (head == tail) {
+			// Caught up, so the journal starts again from the beginning
+			head = HEADER_SIZE;
+			tail = HEADER_SIZE;
+			writeHeader();
+			buffer.force();
+		} else {
+			buffer.putLong(HEAD_OFFSET, head);
+		}
+	}
+
+	/**
+	 * Append a record that can't be published to the dead letter file and
+	 * force it to disk.
+	 *
+	 * @return false if it couldn't be written, leaving the record in the journal
+	 */
+	private boolean deadLetter(String jmsxGroupId, byte[] body) {
+		byte[] groupId = encode(jmsxGroupId);
+		try {
+			FileOutputStream out = new FileOutputStream(deadLetterFile, true);
+			try {
+				DataOutputStream record = new DataOutputStream(out);
+				record.writeInt(4 + groupId.length + body.length);
+				record.writeInt(groupId.length);
+				record.write(groupId);
+				record.write(body);
+				record.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			LOG.error("Could not write outbox dead letter file " + deadLetterFile, e);
+			return false;
+		}
+		synchronized (this) {
+			deadLetters++;
+		}
+		return true;
+	}
+
+	// Move the unpublished records to the start if they can't overlap their old place
+	private boolean compact(int size) {
+		int live = tail - head;
+		if (head - HEADER_SIZE < live || (long) HEADER_SIZE + live + size > capacity) {
+			return false;
+		}
+		ByteBuffer records = buffer.duplicate();
+		records.position(head);
+		records.limit(tail);
+		ByteBuffer start = buffer.duplicate();
+		start.position(HEADER_SIZE);
+		start.put(records);
+		buffer.force();
+		head = HEADER_SIZE;
+		tail = HEADER_SIZE + live;
+		writeHeader();
+		buffer.force();
+		compactions++;
+		return true;
+	}
+
+	private void writeHeader() {
+		buffer.putLong(HEAD_OFFSET, head);
+		buffer.putLong(TAIL_OFFSET, tail);
+	}
+
+	private static byte[] encode(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(byte[] value) {
+		try {
+			return new String(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A message to a provisioner before it is encoded: the operation, its fields
+ * in order and an optional named list of members. Codecs turn it into the
+ * format each target reads. The members are either added to the message or
+ * read from a source each time it is encoded, so a large group is never held
+ * as a list of strings.
+ */
+public class ProvisioningMessage {
+
+	private final String operation;
+	private final List<String> fieldNames = new ArrayList<String>(4);
+	private final List<String> fieldValues = new ArrayList<String>(4);
+	private String listName = null;
+	private List<String> members = null;
+	private Iterable<String> memberSource = null;
+
+
+	public ProvisioningMessage(String operation) {
+		this.operation = operation;
+	}
+
+	public ProvisioningMessage field(String name, String value) {
+		fieldNames.add(name);
+		fieldValues.add(value);
+		return this;
+	}
+
+	/**
+	 * Start the member list. A message has at most one and it follows the fields.
+	 */
+	public ProvisioningMessage beginList(String name) {
+		listName = name;
+		members = new ArrayList<String>();
+		return this;
+	}
+
+	/**
+	 * Start a member list that is read from the source whenever the message
+	 * is encoded. member and members can't be used with it.
+	 */
+	public ProvisioningMessage beginList(String name, Iterable<String> source) {
+		listName = name;
+		memberSource = source;
+		return this;
+	}
+
+	public ProvisioningMessage member(String value) {
+		members.add(value);
+		return this;
+	}
+
+	public ProvisioningMessage members(Collection<String> values) {
+		members.addAll(values);
+		return this;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public int getFieldCount() {
+		return fieldNames.size();
+	}
+
+	public String getFieldName(int index) {
+		return fieldNames.get(index);
+	}
+
+	public String getFieldValue(int index) {
+		return fieldValues.get(index);
+	}
+
+	/**
+	 * The value of the first field with this name, or null.
+	 */
+	public String getField(String name) {
+		int index = fieldNames.indexOf(name);
+		return index < 0 ? null : fieldValues.get(index);
+	}
+
+	public boolean hasList() {
+		return listName != null;
+	}
+
+	public String getListName() {
+		return listName;
+	}
+
+	public Iterable<String> getMembers() {
+		if (memberSource != null) {
+			return memberSource;
+		}
+		return members == null ? Collections.<String>emptyList() : members;
+	}
+
+	/**
+	 * A short summary for logging: the operation, the name field and the
+	 * number of members, which isn't known for a source until it is read.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder summary = new StringBuilder(operation);
+		String name = getField("name");
+		if (name != null) {
+			summary.append(" name=").append(name);
+		}
+		String memberId = getField("memberId");
+		if (memberId != null) {
+			summary.append(" memberId=").append(memberId);
+		}
+		if (memberSource instanceof Collection) {
+			summary.append(" members=").append(((Collection<?>) memberSource).size());
+		} else if (memberSource != null) {
+			summary.append(" members=streamed");
+		} else if (members != null) {
+			summary.append(" members=").append(members.size());
+		}
+		return summary.toString();
+	}
+}
@@ -0,0 +1,195 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.AsyncCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Tracks asynchronous sends per change log sequence. The watermark is the
+ * highest sequence for which it and every earlier sequence have been fully
+ * processed and all of their messages confirmed by the broker. A semaphore
+ * bounds the number of sends in flight.
+ */
+public class SequenceWatermark {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	private final Semaphore window;
+	// Sequences not yet below the watermark, in order
+	private final TreeMap<Long, SequenceState> sequences = new TreeMap<Long, SequenceState>();
+	private long watermark;
+	private int inFlight = 0;
+	private JMSException failure = null;
+	private long failedSequence = -1;
+
+
+	public SequenceWatermark(long lastConfirmed, int maxInFlight) {
+		this.watermark = lastConfirmed;
+		this.window = new Semaphore(Math.max(1, maxInFlight));
+	}
+
+	/**
+	 * Start tracking a sequence. Sequences must be opened in increasing order.
+	 */
+	public synchronized void open(long sequence) {
+		sequences.put(sequence, new SequenceState());
+	}
+
+	/**
+	 * Mark a sequence as fully processed. It becomes confirmed once all of
+	 * its sends have been acknowledged.
+	 */
+	public synchronized void close(long sequence) {
+		SequenceState state = sequences.get(sequence);
+		if (state != null) {
+			state.closed = true;
+			advance();
+		}
+	}
+
+	/**
+	 * Keep the watermark below a sequence until it is released, for work on
+	 * the sequence that hasn't been sent yet.
+	 */
+	public synchronized void hold(long sequence) {
+		SequenceState state = sequences.get(sequence);
+		if (state == null) {
+			state = new SequenceState();
+			sequences.put(sequence, state);
+		}
+		state.pending++;
+	}
+
+	public synchronized void release(long sequence) {
+		SequenceState state = sequences.get(sequence);
+		if (state != null) {
+			state.pending--;
+			advance();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reserve a slot in the in-flight window for a send on this sequence,
+	 * blocking while the window is full. The returned callback must be
+	 * handed to the send, or called directly if the send cannot be made.
+	 */
+	public AsyncCallback acquire(final long sequence) throws InterruptedException {
+		window.acquire();
+		synchronized (this) {
+			SequenceState state = sequences.get(sequence);
+			if (state == null) {
+				state = new SequenceState();
+				sequences.put(sequence, state);
+			}
+			state.pending++;
+			inFlight++;
+		}
+		return new AsyncCallback() {
+			public void onSuccess() {
+				confirmed(sequence, null);
+			}
+
+			public void onException(JMSException e) {
+				confirmed(sequence, e);
+			}
+		};
+	}
+
+	/**
+	 * Wait until nothing is in flight or the timeout passes.
+	 *
+	 * @return true if every send completed
+	 */
+	public synchronized boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (inFlight > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	public synchronized long getWatermark() {
+		return watermark;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * The first send failure, or null if every completed send succeeded.
+	 */
+	public synchronized JMSException getFailure() {
+		return failure;
+	}
+
+	public synchronized long getFailedSequence() {
+		return failedSequence;
+	}
+
+	private void confirmed(long sequence, JMSException e) {
+		synchronized (this) {
+			SequenceState state = sequences.get(sequence);
+			if (state != null) {
+				state.pending--;
+				if (e != null) {
+					state.failed = true;
+				}
+			}
+			if (e != null && failure == null) {
+				LOG.error("Asynchronous send failed for sequence " + sequence + ": " + e.getMessage());
+				failure = e;
+				failedSequence = sequence;
+			}
+			inFlight--;
+			advance();
+			notifyAll();
+		}
+		window.release();
+	}
+
+	private void advance() {
+		while (!sequences.isEmpty()) {
+			Map.Entry<Long, SequenceState> first = sequences.firstEntry();
+			SequenceState state = first.getValue();
+			if (!state.closed || state.pending > 0 || state.failed) {
+				return;
+			}
+			watermark = first.getKey();
+			sequences.remove(first.getKey());
+		}
+	}
+
+
+	private static class SequenceState {
+		int pending = 0;
+		boolean closed = false;
+		boolean failed = false;
+	}
+}
@@ -0,0 +1,165 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.AsyncCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Publishes one message to several target queues at once. Each target has
+ * its own single thread lane, so messages to a target keep their order while
+ * different targets are sent concurrently.
+ */
+public class TargetFanOut {
+
+	private static final Logger LOG = LoggerFactory.getLogger(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
+
+	private final MessagePublisher publisher;
+	// One single thread executor per target queue
+	private final Map<String, ExecutorService> lanes = new HashMap<String, ExecutorService>();
+
+
+	public TargetFanOut(MessagePublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	/**
+	 * Send the message to every target and wait for all of them. With
+	 * callbacks the sends are asynchronous and the wait only covers handing
+	 * the message to the broker connection.
+	 *
+	 * @param payloads the message body for each target
+	 * @param callbacks one callback per target for asynchronous sends, or null
+	 * @throws FanOutException naming each target that failed
+	 */
+	public void publish(List<String> targets, List<MessagePublisher.Payload> payloads,
+			final String jmsxGroupId, AsyncCallback[] callbacks) throws JMSException {
+
+		List<Future<Object>> results = new ArrayList<Future<Object>>(targets.size());
+
+		for (int i = 0; i < targets.size(); i++) {
+			final String targetQueue = targets.get(i);
+			final MessagePublisher.Payload payload = payloads.get(i);
+			final AsyncCallback callback = callbacks == null ? null : callbacks[i];
+
+			results.add(getLane(targetQueue).submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					if (callback == null) {
+						publisher.send(targetQueue, payload, jmsxGroupId);
+					} else {
+						try {
+							publisher.sendAsync(targetQueue, payload, jmsxGroupId, callback);
+						} catch (JMSException e) {
+							callback.onException(e);
+							throw e;
+						}
+					}
+					return null;
+				}
+			}));
+		}
+
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				failures.put(targets.get(i), cause instanceof Exception ? (Exception) cause : e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failures.put(targets.get(i), e);
+			}
+		}
+
+		if (!failures.isEmpty()) {
+			throw new FanOutException(failures);
+		}
+	}
+
+	/**
+	 * Stop the lane threads.
+	 */
+	public synchronized void shutdown() {
+		for (ExecutorService lane : lanes.values()) {
+			lane.shutdown();
+		}
+		lanes.clear();
+	}
+
+	private synchronized ExecutorService getLane(final String targetQueue) {
+		ExecutorService lane = lanes.get(targetQueue);
+		if (lane == null) {
+			lane = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "amq-fanout-" + targetQueue);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			lanes.put(targetQueue, lane);
+			LOG.debug("Started publishing lane for target {}", targetQueue);
+		}
+		return lane;
+	}
+
+
+	/**
+	 * Raised when one or more targets could not be sent to.
+	 */
+	public static class FanOutException extends JMSException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, Exception> failures;
+
+		public FanOutException(Map<String, Exception> failures) {
+			super(describe(failures));
+			this.failures = failures;
+		}
+
+		/**
+		 * The failure for each target that was not sent to.
+		 */
+		public Map<String, Exception> getFailures() {
+			return failures;
+		}
+
+		private static String describe(Map<String, Exception> failures) {
+			StringBuilder description = new StringBuilder("Failed targets:");
+			for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+				description.append(" ").append(failure.getKey()).append(" (")
+						.append(failure.getValue().getMessage()).append(");");
+			}
+			return description.toString();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+
+/**
+ * The XML and JSON formats the provisioners have always read, written with
+ * the streaming MessageEncoder.
+ */
+public class TextMessageCodec implements MessageCodec.Text {
+
+	public static final TextMessageCodec XML = new TextMessageCodec(true);
+	public static final TextMessageCodec JSON = new TextMessageCodec(false);
+
+	private final boolean xml;
+
+
+	private TextMessageCodec(boolean xml) {
+		this.xml = xml;
+	}
+
+	public String getFormat() {
+		return xml ? "xml" : "json";
+	}
+
+	public String encodeText(ProvisioningMessage message) {
+		MessageEncoder encoder = MessageEncoder.start(xml).operation(message.getOperation());
+		for (int i = 0; i < message.getFieldCount(); i++) {
+			encoder.field(message.getFieldName(i), message.getFieldValue(i));
+		}
+		if (message.hasList()) {
+			encoder.beginList(message.getListName());
+			for (String member : message.getMembers()) {
+				encoder.member(member);
+			}
+			encoder.endList();
+		}
+		return encoder.finish();
+	}
+}
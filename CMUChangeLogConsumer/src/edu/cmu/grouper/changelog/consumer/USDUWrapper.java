@@ -41,13 +41,13 @@ public class USDUWrapper extends USDU {
 	private static final Log LOG = LogFactory
 			.getLog(edu.cmu.grouper.changelog.consumer.ConsumerMain.class);
 
-	public static void resolveMembers(GrouperSession s)
+	public static void resolveMembers(GrouperSession s, ConsumerProperties properties)
 			throws IllegalArgumentException, InsufficientPrivilegeException,
 			GroupNotFoundException, MemberDeleteException,
 			MemberNotFoundException, RevokePrivilegeException, SchemaException,
 			SourceUnavailableException, StemNotFoundException {
 
-		String strExcludeGroup = ConsumerProperties.getUsduExcludes();
+		String strExcludeGroup = properties.getUsduExcludes();
 
 		String delims = "[,]";
 		String[] arrExcludeGroup;
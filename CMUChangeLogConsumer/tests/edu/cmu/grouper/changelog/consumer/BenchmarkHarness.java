@@ -0,0 +1,103 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+
+/**
+ * Timing harness for the *Benchmark classes, which the benchmark target in
+ * build.xml runs. A case is warmed up, then timed over several rounds, and
+ * the best round is printed with the bytes the calling thread allocated
+ * per operation where the JVM reports them. Work handed to other threads
+ * isn't counted.
+ */
+final class BenchmarkHarness {
+
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	// Results go here so the work can't be optimized away
+	static volatile long sink;
+
+
+	/**
+	 * One operation of a benchmark. The result is folded into the sink.
+	 */
+	interface Case {
+
+		long run() throws Exception;
+	}
+
+
+	private BenchmarkHarness() {
+	}
+
+	static void header(String title) {
+		System.out.println();
+		System.out.println(title);
+		System.out.println(String.format("  %-44s %12s %12s %14s", "case", "ops/s", "us/op", "alloc bytes/op"));
+	}
+
+	/**
+	 * Time operations runs of the case per round.
+	 */
+	static void time(String name, int operations, Case benchmark) throws Exception {
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			runRound(operations, benchmark);
+		}
+		long bestNanos = Long.MAX_VALUE;
+		long allocated = -1;
+		for (int round = 0; round < ROUNDS; round++) {
+			long before = allocatedBytes();
+			long start = System.nanoTime();
+			runRound(operations, benchmark);
+			long nanos = System.nanoTime() - start;
+			long after = allocatedBytes();
+			if (nanos < bestNanos) {
+				bestNanos = nanos;
+				allocated = before < 0 ? -1 : (after - before) / operations;
+			}
+		}
+		double nanosPerOp = (double) bestNanos / operations;
+		System.out.println(String.format("  %-44s %12.0f %12.2f %14s", name,
+				1e9 / nanosPerOp, nanosPerOp / 1000, allocated < 0 ? "n/a" : String.valueOf(allocated)));
+	}
+
+	/**
+	 * Print a size, such as the bytes a format writes.
+	 */
+	static void size(String name, long bytes) {
+		System.out.println(String.format("  %-44s %12d bytes", name, bytes));
+	}
+
+	private static void runRound(int operations, Case benchmark) throws Exception {
+		long result = 0;
+		for (int i = 0; i < operations; i++) {
+			result += benchmark.run();
+		}
+		sink += result;
+	}
+
+	// Bytes allocated by this thread so far, or -1 if the JVM doesn't say
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,105 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+
+/**
+ * Full sync messages sent as plain TextMessages against gzipped
+ * BytesMessages on an embedded non-persistent broker: send throughput, and
+ * the body bytes that reach the consumer per message. Messages are
+ * marshalled as on a network connection, but there is no journal to write,
+ * so the time saved on a persistent broker's disk doesn't show here.
+ */
+public class CompressionBenchmark {
+
+	private static final String BROKER_URL = "vm://compression-benchmark?marshal=true&broker.persistent=false&broker.useJmx=false";
+
+	public static void main(String[] args) throws Exception {
+		Connection connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = session.createConsumer(session.createQueue("bench.compression"));
+		final AtomicLong received = new AtomicLong();
+		final AtomicLong bodyBytes = new AtomicLong();
+		consumer.setMessageListener(new MessageListener() {
+			public void onMessage(Message message) {
+				try {
+					if (message instanceof BytesMessage) {
+						bodyBytes.addAndGet(((BytesMessage) message).getBodyLength());
+					} else {
+						bodyBytes.addAndGet(((TextMessage) message).getText().getBytes("UTF-8").length);
+					}
+					received.incrementAndGet();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		for (int memberCount : new int[] { 100, 1000, 10000 }) {
+			ProvisioningMessage message = new ProvisioningMessage("fullSync")
+					.field("description", "Staff")
+					.field("name", "edu:staff:all")
+					.beginList("memberList");
+			for (int i = 0; i < memberCount; i++) {
+				message.member("user" + (100000 + i * 7));
+			}
+			final String text = TextMessageCodec.JSON.encodeText(message);
+			int operations = Math.max(20, 20000 / memberCount);
+
+			BenchmarkHarness.header("fullSync of " + memberCount + " members (" + text.length()
+					+ " chars), " + operations + " per round");
+			for (int threshold : new int[] { 0, 1024 }) {
+				final MessagePublisher publisher = MessagePublisher.create(BROKER_URL, null, null);
+				publisher.setCompressThreshold(threshold);
+				publisher.connect();
+				String name = threshold == 0 ? "plain TextMessage" : "gzipped BytesMessage";
+				BenchmarkHarness.time(name + " send", operations, new BenchmarkHarness.Case() {
+					public long run() throws JMSException {
+						publisher.send("bench.compression", text, "edu:staff:all");
+						return 1;
+					}
+				});
+				long before = drain(received, bodyBytes);
+				publisher.send("bench.compression", text, "edu:staff:all");
+				BenchmarkHarness.size(name + " body", drain(received, bodyBytes) - before);
+				publisher.close();
+			}
+		}
+		connection.close();
+	}
+
+	// Wait for the consumer to catch up, then give the body bytes received so far
+	private static long drain(AtomicLong received, AtomicLong bodyBytes) throws InterruptedException {
+		long last = -1;
+		while (received.get() != last) {
+			last = received.get();
+			Thread.sleep(200);
+		}
+		return bodyBytes.get();
+	}
+}
@@ -0,0 +1,93 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+
+/**
+ * Composite destination fan-out against sending to each target in turn and
+ * against the parallel fan-out, on an embedded non-persistent broker. Every
+ * target queue is drained by a listener so the broker never throttles.
+ */
+public class FanOutBenchmark {
+
+	private static final String BROKER_URL = "vm://fanout-benchmark?broker.persistent=false&broker.useJmx=false";
+	private static final int OPERATIONS = 500;
+
+	public static void main(String[] args) throws Exception {
+		Connection connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		final MessagePublisher publisher = MessagePublisher.create(BROKER_URL, null, null);
+		publisher.connect();
+
+		StringBuilder body = new StringBuilder("{\"operation\":\"addMember\",\"name\":\"edu:staff:all\",\"memberId\":\"");
+		while (body.length() < 240) {
+			body.append('x');
+		}
+		body.append("\"}");
+		final MessagePublisher.Payload payload = publisher.prepare(body.toString());
+
+		for (int targetCount : new int[] { 2, 4 }) {
+			final List<String> targets = new ArrayList<String>();
+			final List<MessagePublisher.Payload> payloads = new ArrayList<MessagePublisher.Payload>();
+			for (int i = 0; i < targetCount; i++) {
+				String target = "bench.target" + i;
+				targets.add(target);
+				payloads.add(payload);
+				MessageConsumer consumer = session.createConsumer(session.createQueue(target));
+				consumer.setMessageListener(new MessageListener() {
+					public void onMessage(Message message) {
+					}
+				});
+			}
+			final String composite = ConsumerProperties.joinTargets(targets);
+
+			BenchmarkHarness.header("Fan-out to " + targetCount + " targets, " + OPERATIONS + " messages per round");
+			BenchmarkHarness.time("per-target send loop", OPERATIONS, new BenchmarkHarness.Case() {
+				public long run() throws Exception {
+					for (String target : targets) {
+						publisher.send(target, payload, "edu:staff:all");
+					}
+					return targets.size();
+				}
+			});
+			BenchmarkHarness.time("parallel fan-out", OPERATIONS, new BenchmarkHarness.Case() {
+				public long run() throws Exception {
+					publisher.getFanOut().publish(targets, payloads, "edu:staff:all", null);
+					return targets.size();
+				}
+			});
+			BenchmarkHarness.time("composite destination", OPERATIONS, new BenchmarkHarness.Case() {
+				public long run() throws Exception {
+					publisher.send(composite, payload, "edu:staff:all");
+					return 1;
+				}
+			});
+		}
+
+		publisher.close();
+		connection.close();
+	}
+}
@@ -0,0 +1,101 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class FullSyncCheckpointTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sameRunResumesCompletedGroups() throws Exception {
+		File file = new File(folder.getRoot(), "checkpoint");
+		FullSyncCheckpoint checkpoint = new FullSyncCheckpoint(file, "run-1", 3600);
+		checkpoint.markCompleted("edu:a");
+		checkpoint.markCompleted("edu:b");
+		checkpoint.markCompleted("edu:a");
+		checkpoint.close();
+
+		FullSyncCheckpoint resumed = new FullSyncCheckpoint(file, "run-1", 3600);
+		assertEquals(2, resumed.getCompletedCount());
+		assertTrue(resumed.isCompleted("edu:a"));
+		assertTrue(resumed.isCompleted("edu:b"));
+		assertFalse(resumed.isCompleted("edu:c"));
+
+		// Groups finished after the resume are appended to the same file
+		resumed.markCompleted("edu:c");
+		resumed.close();
+		FullSyncCheckpoint again = new FullSyncCheckpoint(file, "run-1", 3600);
+		assertEquals(3, again.getCompletedCount());
+		again.close();
+	}
+
+	@Test
+	public void differentRunStartsOver() throws Exception {
+		File file = new File(folder.getRoot(), "checkpoint");
+		FullSyncCheckpoint checkpoint = new FullSyncCheckpoint(file, "run-1", 3600);
+		checkpoint.markCompleted("edu:a");
+		checkpoint.close();
+
+		FullSyncCheckpoint next = new FullSyncCheckpoint(file, "run-2", 3600);
+		assertEquals(0, next.getCompletedCount());
+		assertFalse(next.isCompleted("edu:a"));
+		next.close();
+
+		// The old run's groups are gone from the file as well
+		FullSyncCheckpoint reopened = new FullSyncCheckpoint(file, "run-2", 3600);
+		assertEquals(0, reopened.getCompletedCount());
+		reopened.close();
+	}
+
+	@Test
+	public void completedGroupsWaitForTheInterval() throws Exception {
+		File file = new File(folder.getRoot(), "checkpoint");
+		FullSyncCheckpoint checkpoint = new FullSyncCheckpoint(file, "run-1", 3600);
+		checkpoint.markCompleted("edu:a");
+		assertEquals("runId=run-1\n", read(file));
+		checkpoint.flush();
+		assertEquals("runId=run-1\nedu:a\n", read(file));
+		checkpoint.close();
+	}
+
+	private static String read(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
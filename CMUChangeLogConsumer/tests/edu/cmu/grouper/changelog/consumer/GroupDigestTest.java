@@ -0,0 +1,77 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+
+/**
+ * Known membership digests, for checking the provisioner's implementation
+ * against this one.
+ */
+public class GroupDigestTest {
+
+	private static String digest(String... members) {
+		GroupDigest digest = new GroupDigest("fullSync", "description");
+		for (String member : members) {
+			digest.add(member);
+		}
+		return digest.getMembershipDigest();
+	}
+
+	@Test
+	public void emptyGroup() {
+		assertEquals("0000000000000000-0000000000000000", digest());
+	}
+
+	@Test
+	public void singleMember() {
+		assertEquals("2bd806c97f0e00af-1a1fc3328fa763a9", digest("alice"));
+	}
+
+	@Test
+	public void sumsWrapAround() {
+		assertEquals("f9b517a9c808a027-5bd2d0d4cb7c5031", digest("alice", "bob", "carol"));
+	}
+
+	@Test
+	public void subjectIdIsUtf8() {
+		assertEquals("19b720a911fced55-aecd96bf4ddcada1", digest("j\u00fcrgen"));
+	}
+
+	@Test
+	public void membershipDigestIgnoresSeed() {
+		GroupDigest other = new GroupDigest("fullSyncIsMemberOf", "other description");
+		other.add("alice");
+		assertEquals(digest("alice"), other.getMembershipDigest());
+	}
+
+	@Test
+	public void orderDoesNotMatter() {
+		assertEquals(digest("alice", "bob", "carol"), digest("carol", "alice", "bob"));
+		assertEquals(digest("alice", "bob", "carol"), digest("bob", "carol", "alice"));
+	}
+
+	@Test
+	public void seedCoversEverythingButMembers() {
+		GroupDigest basic = new GroupDigest("fullSync", "description");
+		GroupDigest iMO = new GroupDigest("fullSyncIsMemberOf", "description");
+		basic.add("alice");
+		iMO.add("alice");
+		assertFalse(basic.toString().equals(iMO.toString()));
+	}
+}
@@ -0,0 +1,70 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+
+/**
+ * Encode time and encoded size of each message format, for a single member
+ * change, a bulk change and a large full sync.
+ */
+public class MessageCodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		ProvisioningMessage addMember = new ProvisioningMessage("addMember")
+				.field("name", "edu:staff:all")
+				.field("memberId", "user100042");
+		run("addMember", addMember, 200000);
+		run("addMembers of 100", members("addMembers", 100), 20000);
+		run("fullSync of 5000", members("fullSync", 5000), 200);
+	}
+
+	private static ProvisioningMessage members(String operation, int count) {
+		ProvisioningMessage message = new ProvisioningMessage(operation)
+				.field("description", "Staff <all> & friends")
+				.field("name", "edu:staff:all")
+				.beginList("memberList");
+		for (int i = 0; i < count; i++) {
+			message.member("user" + (100000 + i * 7));
+		}
+		return message;
+	}
+
+	private static void run(String title, final ProvisioningMessage message, int operations)
+			throws Exception {
+		BenchmarkHarness.header(title + ", " + operations + " per round");
+		for (final MessageCodec.Text codec : new MessageCodec.Text[] {
+				TextMessageCodec.XML, TextMessageCodec.JSON }) {
+			BenchmarkHarness.time(codec.getFormat() + " encode", operations, new BenchmarkHarness.Case() {
+				public long run() {
+					return codec.encodeText(message).length();
+				}
+			});
+		}
+		final BinaryMessageCodec binary = BinaryMessageCodec.INSTANCE;
+		BenchmarkHarness.time("binary encode", operations, new BenchmarkHarness.Case() {
+			public long run() {
+				return binary.encodeBytes(message).length;
+			}
+		});
+		final byte[] encoded = binary.encodeBytes(message);
+		BenchmarkHarness.time("binary decode", operations, new BenchmarkHarness.Case() {
+			public long run() {
+				return binary.decode(encoded).getFieldCount();
+			}
+		});
+		BenchmarkHarness.size("xml size", TextMessageCodec.XML.encodeText(message).getBytes("UTF-8").length);
+		BenchmarkHarness.size("json size", TextMessageCodec.JSON.encodeText(message).getBytes("UTF-8").length);
+		BenchmarkHarness.size("binary size", encoded.length);
+	}
+}
@@ -0,0 +1,155 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class MessageCodecTest {
+
+	private static List<String> members(ProvisioningMessage message) {
+		List<String> members = new ArrayList<String>();
+		for (String member : message.getMembers()) {
+			members.add(member);
+		}
+		return members;
+	}
+
+	private static ProvisioningMessage roundTrip(ProvisioningMessage message) {
+		return BinaryMessageCodec.INSTANCE.decode(BinaryMessageCodec.INSTANCE.encodeBytes(message));
+	}
+
+	@Test
+	public void binaryRoundTripsFieldsAndMembers() {
+		ProvisioningMessage message = new ProvisioningMessage("fullSync")
+				.field("description", "Caf\u00e9 <staff> & \u4eba")
+				.field("name", "edu:staff")
+				.beginList("memberList")
+				.member("jdoe")
+				.member("j\u00fcrgen");
+
+		ProvisioningMessage decoded = roundTrip(message);
+		assertEquals("fullSync", decoded.getOperation());
+		assertEquals(2, decoded.getFieldCount());
+		assertEquals("description", decoded.getFieldName(0));
+		assertEquals("Caf\u00e9 <staff> & \u4eba", decoded.getFieldValue(0));
+		assertEquals("edu:staff", decoded.getField("name"));
+		assertEquals("memberList", decoded.getListName());
+		assertEquals(Arrays.asList("jdoe", "j\u00fcrgen"), members(decoded));
+	}
+
+	@Test
+	public void binaryKeepsNullsAndUnknownTokens() {
+		ProvisioningMessage message = new ProvisioningMessage("someFutureOperation")
+				.field("someFutureField", null)
+				.field("name", "");
+
+		ProvisioningMessage decoded = roundTrip(message);
+		assertEquals("someFutureOperation", decoded.getOperation());
+		assertEquals("someFutureField", decoded.getFieldName(0));
+		assertNull(decoded.getFieldValue(0));
+		assertEquals("", decoded.getField("name"));
+		assertFalse(decoded.hasList());
+	}
+
+	@Test
+	public void binaryEncodesAStreamedListLikeAnAddedOne() {
+		List<String> many = new ArrayList<String>();
+		for (int i = 0; i < 300; i++) {
+			many.add("user" + i);
+		}
+		ProvisioningMessage added = new ProvisioningMessage("addMembers").field("name", "edu:g")
+				.beginList("memberList").members(many);
+		ProvisioningMessage streamed = new ProvisioningMessage("addMembers").field("name", "edu:g")
+				.beginList("memberList", many);
+
+		byte[] encoded = BinaryMessageCodec.INSTANCE.encodeBytes(streamed);
+		assertTrue(Arrays.equals(BinaryMessageCodec.INSTANCE.encodeBytes(added), encoded));
+		assertEquals(many, members(BinaryMessageCodec.INSTANCE.decode(encoded)));
+	}
+
+	@Test
+	public void binaryEmptyList() {
+		ProvisioningMessage decoded = roundTrip(new ProvisioningMessage("removeAllMembers")
+				.beginList("memberList"));
+		assertEquals("memberList", decoded.getListName());
+		assertTrue(members(decoded).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void binaryRejectsUnknownVersion() {
+		BinaryMessageCodec.INSTANCE.decode(new byte[] { 2, 1, 0, 0 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void binaryRejectsTruncatedMessage() {
+		byte[] encoded = BinaryMessageCodec.INSTANCE.encodeBytes(new ProvisioningMessage("addMember")
+				.field("name", "edu:staff"));
+		BinaryMessageCodec.INSTANCE.decode(Arrays.copyOf(encoded, encoded.length - 3));
+	}
+
+	@Test
+	public void textCodecsSurviveBinaryRoundTrip() {
+		// The outbox keeps messages in binary and encodes them for the targets later
+		ProvisioningMessage message = new ProvisioningMessage("fullSync")
+				.field("description", "a]]>b \"quoted\"")
+				.field("name", "edu:staff")
+				.beginList("memberList", Arrays.asList("jdoe", "asmith"));
+
+		ProvisioningMessage decoded = roundTrip(message);
+		assertEquals(TextMessageCodec.XML.encodeText(message), TextMessageCodec.XML.encodeText(decoded));
+		assertEquals(TextMessageCodec.JSON.encodeText(message), TextMessageCodec.JSON.encodeText(decoded));
+	}
+
+	@Test
+	public void formatsByName() {
+		assertSame(TextMessageCodec.XML, MessageCodecs.forFormat("XML"));
+		assertSame(TextMessageCodec.JSON, MessageCodecs.forFormat("json"));
+		assertSame(BinaryMessageCodec.INSTANCE, MessageCodecs.forFormat("binary"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void customFormatMustBeTextOrBinary() {
+		MessageCodecs.forFormat(PlainCodec.class.getName());
+	}
+
+	@Test
+	public void toStringIsASummary() {
+		List<String> many = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			many.add("user" + i);
+		}
+		assertEquals("addMembers name=edu:g members=1000", new ProvisioningMessage("addMembers")
+				.field("name", "edu:g").beginList("memberList").members(many).toString());
+		assertEquals("addMember name=edu:g memberId=jdoe", new ProvisioningMessage("addMember")
+				.field("name", "edu:g").field("memberId", "jdoe").toString());
+	}
+
+	public static class PlainCodec implements MessageCodec {
+
+		public String getFormat() {
+			return "plain";
+		}
+	}
+}
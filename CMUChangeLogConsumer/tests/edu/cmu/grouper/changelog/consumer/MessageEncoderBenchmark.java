@@ -0,0 +1,101 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+
+/**
+ * The streaming MessageEncoder against the string concatenation and
+ * JSONObject building it replaced, for full sync messages of several sizes.
+ */
+public class MessageEncoderBenchmark {
+
+	private static final String DESCRIPTION = "Staff <all> & friends";
+	private static final String NAME = "edu:staff:all";
+
+	public static void main(String[] args) throws Exception {
+		for (int memberCount : new int[] { 100, 1000, 5000 }) {
+			final List<String> members = new ArrayList<String>(memberCount);
+			for (int i = 0; i < memberCount; i++) {
+				members.add("user" + i);
+			}
+			// The old XML building is quadratic, so larger messages get fewer operations
+			int operations = Math.max(5, 200000 / memberCount / (memberCount >= 1000 ? 10 : 1));
+
+			BenchmarkHarness.header("fullSync of " + memberCount + " members, " + operations + " per round");
+			BenchmarkHarness.time("xml string concatenation (old)", operations, new BenchmarkHarness.Case() {
+				public long run() {
+					return oldXml(members).length();
+				}
+			});
+			BenchmarkHarness.time("xml MessageEncoder", operations, new BenchmarkHarness.Case() {
+				public long run() {
+					return encode(true, members).length();
+				}
+			});
+			BenchmarkHarness.time("json JSONObject (old)", operations, new BenchmarkHarness.Case() {
+				public long run() {
+					return oldJson(members).length();
+				}
+			});
+			BenchmarkHarness.time("json MessageEncoder", operations, new BenchmarkHarness.Case() {
+				public long run() {
+					return encode(false, members).length();
+				}
+			});
+		}
+	}
+
+	// As getGroupFullSyncMessage built it before the encoder
+	private static String oldXml(List<String> members) {
+		String mesg = "<operation>fullSync</operation>";
+		mesg = mesg + "<description><![CDATA[" + DESCRIPTION + "]]></description>";
+		mesg = mesg + "<name><![CDATA[" + NAME + "]]></name>";
+		mesg = mesg + "<memberList>";
+		for (String member : members) {
+			mesg = mesg + "<member><![CDATA[" + member + "]]></member>";
+		}
+		return mesg + "</memberList>";
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String oldJson(List<String> members) {
+		JSONObject jObj = new JSONObject();
+		JSONArray jList = new JSONArray();
+		jObj.put("operation", "fullSync");
+		jObj.put("description", DESCRIPTION);
+		jObj.put("name", NAME);
+		for (String member : members) {
+			jList.add(member);
+		}
+		jObj.put("memberList", jList);
+		return jObj.toJSONString();
+	}
+
+	private static String encode(boolean xml, List<String> members) {
+		MessageEncoder encoder = MessageEncoder.start(xml).operation("fullSync")
+				.field("description", DESCRIPTION)
+				.field("name", NAME)
+				.beginList("memberList");
+		for (String member : members) {
+			encoder.member(member);
+		}
+		return encoder.endList().finish();
+	}
+}
@@ -0,0 +1,102 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+
+/**
+ * The streaming encoder against the messages the string and JSONObject
+ * builders it replaced used to produce.
+ */
+public class MessageEncoderTest {
+
+	private static final List<String> MEMBERS = Arrays.asList("jdoe", "asmith", "edu:staff:all");
+
+	@Test
+	public void xmlFullSyncMatchesTheOldFormat() {
+		String old = "<operation>fullSync</operation>"
+				+ "<description><![CDATA[Staff <all> & friends]]></description>"
+				+ "<name><![CDATA[edu:staff]]></name>"
+				+ "<memberList>";
+		for (String member : MEMBERS) {
+			old = old + "<member><![CDATA[" + member + "]]></member>";
+		}
+		old = old + "</memberList>";
+
+		assertEquals(old, fullSync(true, "Staff <all> & friends"));
+	}
+
+	@Test
+	public void xmlSplitsCdataEnd() {
+		String encoded = MessageEncoder.start(true).field("description", "a]]>b]]>").finish();
+
+		assertEquals("<description><![CDATA[a]]]]><![CDATA[>b]]]]><![CDATA[>]]></description>", encoded);
+	}
+
+	@Test
+	public void jsonFullSyncMatchesTheOldFormat() throws Exception {
+		JSONObject old = new JSONObject();
+		old.put("operation", "fullSync");
+		old.put("description", "Staff <all> & friends");
+		old.put("name", "edu:staff");
+		JSONArray list = new JSONArray();
+		list.addAll(MEMBERS);
+		old.put("memberList", list);
+
+		assertEquals(parse(old.toJSONString()), parse(fullSync(false, "Staff <all> & friends")));
+	}
+
+	@Test
+	public void jsonEscapesLikeTheOldFormat() throws Exception {
+		String value = "quote\" backslash\\ slash/ newline\n tab\t control\u0001 separator\u2028 accent\u00e9";
+		JSONObject old = new JSONObject();
+		old.put("description", value);
+
+		String encoded = MessageEncoder.start(false).field("description", value).finish();
+
+		assertEquals("{\"description\":\"quote\\\" backslash\\\\ slash/ newline\\n tab\\t control\\u0001"
+				+ " separator\\u2028 accent\u00e9\"}", encoded);
+		assertEquals(parse(old.toJSONString()), parse(encoded));
+	}
+
+	@Test
+	public void jsonWritesNullAndEmptyLists() throws Exception {
+		String encoded = MessageEncoder.start(false).operation("fullSync").field("description", null)
+				.beginList("memberList").endList().finish();
+
+		assertEquals("{\"operation\":\"fullSync\",\"description\":null,\"memberList\":[]}", encoded);
+	}
+
+	private static String fullSync(boolean xml, String description) {
+		MessageEncoder encoder = MessageEncoder.start(xml).operation("fullSync")
+				.field("description", description).field("name", "edu:staff").beginList("memberList");
+		for (String member : MEMBERS) {
+			encoder.member(member);
+		}
+		return encoder.endList().finish();
+	}
+
+	private static Object parse(String json) throws Exception {
+		return new JSONParser().parse(json);
+	}
+}
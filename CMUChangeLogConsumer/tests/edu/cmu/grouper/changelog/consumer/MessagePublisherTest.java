@@ -0,0 +1,126 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Publishing against an embedded, non-persistent broker.
+ */
+public class MessagePublisherTest {
+
+	private static final String BROKER_URL = "vm://publisher-test?broker.persistent=false&broker.useJmx=false";
+
+	private MessagePublisher publisher;
+	private Connection connection;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		// The first connection starts the embedded broker and keeps it up
+		connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+		connection.start();
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		publisher = MessagePublisher.create(BROKER_URL, null, null);
+		publisher.connect();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		publisher.close();
+		connection.close();
+	}
+
+	@Test
+	public void compositeTargetDeliversOneCopyToEveryQueue() throws Exception {
+		String composite = ConsumerProperties.joinTargets(ConsumerProperties.parseTargets("ldap.test,ad.test"));
+		publisher.send(composite, "{\"operation\":\"addMember\"}", "edu:group");
+
+		for (String queue : new String[] { "ldap.test", "ad.test" }) {
+			MessageConsumer consumer = session.createConsumer(session.createQueue(queue));
+			Message message = consumer.receive(5000);
+			assertNotNull("no message on " + queue, message);
+			assertEquals("{\"operation\":\"addMember\"}", ((TextMessage) message).getText());
+			assertEquals("edu:group", message.getStringProperty("JMSXGroupID"));
+			assertNull(consumer.receive(200));
+			consumer.close();
+		}
+	}
+
+	@Test
+	public void largeMessageIsSentGzipped() throws Exception {
+		StringBuilder text = new StringBuilder("{\"operation\":\"fullSync\",\"members\":[");
+		for (int i = 0; i < 2000; i++) {
+			text.append(i == 0 ? "" : ",").append("\"user").append(i).append('"');
+		}
+		text.append("]}");
+		publisher.setCompressThreshold(1024);
+		publisher.send("gzip.test", text.toString(), "edu:group");
+
+		MessageConsumer consumer = session.createConsumer(session.createQueue("gzip.test"));
+		BytesMessage message = (BytesMessage) consumer.receive(5000);
+		consumer.close();
+		assertNotNull(message);
+		assertEquals("gzip", message.getStringProperty(MessagePublisher.CONTENT_ENCODING));
+		byte[] body = new byte[(int) message.getBodyLength()];
+		message.readBytes(body);
+		assertTrue(body.length < text.length() / 4);
+		assertEquals(text.toString(), gunzip(body));
+		assertTrue(publisher.getCompressionStats().startsWith("compressed=1 "));
+	}
+
+	@Test
+	public void smallMessageStaysText() throws Exception {
+		publisher.setCompressThreshold(1024);
+		publisher.send("gzip.test", "{\"operation\":\"addMember\"}", "edu:group");
+
+		MessageConsumer consumer = session.createConsumer(session.createQueue("gzip.test"));
+		Message message = consumer.receive(5000);
+		consumer.close();
+		assertEquals("{\"operation\":\"addMember\"}", ((TextMessage) message).getText());
+		assertNull(message.getStringProperty(MessagePublisher.CONTENT_ENCODING));
+	}
+
+	private static String gunzip(byte[] body) throws Exception {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+}
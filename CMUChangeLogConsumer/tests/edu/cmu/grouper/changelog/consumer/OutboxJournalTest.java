@@ -0,0 +1,159 @@
+/*Copyright 2014 Carnegie Mellon University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.*/
+
+package edu.cmu.grouper.changelog.consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class OutboxJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Records what it publishes, failing a given group a number of times.
+	 */
+	private static class RecordingSender implements OutboxJournal.Sender {
+
+		private final List<String> sent = new ArrayList<String>();
+		private final String failingGroup;
+		private final boolean failTransiently;
+		private int failuresLeft;
+
+		RecordingSender(String failingGroup, boolean failTransiently, int failures) {
+			this.failingGroup = failingGroup;
+			this.failTransiently = failTransiently;
+			this.failuresLeft = failures;
+		}
+
+		public synchronized void send(String jmsxGroupId, byte[] message) throws Exception {
+			if (jmsxGroupId.equals(failingGroup) && failuresLeft > 0) {
+				failuresLeft--;
+				throw new Exception("rejected " + jmsxGroupId);
+			}
+			sent.add(jmsxGroupId + ":" + new String(message, "UTF-8"));
+		}
+
+		public boolean isTransient(Exception e) {
+			return failTransiently;
+		}
+
+		synchronized List<String> getSent() {
+			return new ArrayList<String>(sent);
+		}
+	}
+
+	private OutboxJournal open(String name) throws Exception {
+		return new OutboxJournal(new File(folder.getRoot(), name), 64 * 1024, 1);
+	}
+
+	private static void awaitDrained(OutboxJournal outbox) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (outbox.getPendingBytes() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, outbox.getPendingBytes());
+	}
+
+	private static byte[] bytes(String value) throws Exception {
+		return value.getBytes("UTF-8");
+	}
+
+	@Test
+	public void publishesInOrder() throws Exception {
+		OutboxJournal outbox = open("outbox");
+		RecordingSender sender = new RecordingSender(null, false, 0);
+		assertTrue(outbox.append("edu:a", bytes("1")));
+		assertTrue(outbox.append("edu:b", bytes("2")));
+		outbox.startDrainer(sender);
+		assertTrue(outbox.append("edu:a", bytes("3")));
+		awaitDrained(outbox);
+		outbox.close();
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("edu:a:1");
+		expected.add("edu:b:2");
+		expected.add("edu:a:3");
+		assertEquals(expected, sender.getSent());
+	}
+
+	@Test
+	public void unpublishedMessagesSurviveReopening() throws Exception {
+		OutboxJournal outbox = open("outbox");
+		outbox.append("edu:a", bytes("1"));
+		outbox.sync();
+		outbox.close();
+
+		OutboxJournal reopened = open("outbox");
+		RecordingSender sender = new RecordingSender(null, false, 0);
+		reopened.startDrainer(sender);
+		awaitDrained(reopened);
+		reopened.close();
+		assertEquals("edu:a:1", sender.getSent().get(0));
+	}
+
+	@Test
+	public void permanentFailureMovesToDeadLetterFile() throws Exception {
+		OutboxJournal outbox = open("outbox");
+		RecordingSender sender = new RecordingSender("edu:bad", false, Integer.MAX_VALUE);
+		outbox.append("edu:bad", bytes("1"));
+		outbox.append("edu:good", bytes("2"));
+		outbox.startDrainer(sender);
+		awaitDrained(outbox);
+		outbox.close();
+
+		assertEquals(1, sender.getSent().size());
+		assertEquals("edu:good:2", sender.getSent().get(0));
+		assertTrue(outbox.toString().endsWith("deadLetters=1"));
+
+		// The dead letter file holds the record in the journal's format
+		DataInputStream in = new DataInputStream(new FileInputStream(new File(folder.getRoot(), "outbox.dead")));
+		try {
+			assertEquals(4 + 7 + 1, in.readInt());
+			byte[] groupId = new byte[in.readInt()];
+			in.readFully(groupId);
+			assertArrayEquals(bytes("edu:bad"), groupId);
+			assertEquals('1', in.read());
+			assertEquals(-1, in.read());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void transientFailureIsRetriedWithoutLimit() throws Exception {
+		OutboxJournal outbox = open("outbox");
+		RecordingSender sender = new RecordingSender("edu:a", true, 8);
+		outbox.append("edu:a", bytes("1"));
+		outbox.startDrainer(sender);
+		awaitDrained(outbox);
+		outbox.close();
+
+		assertEquals(1, sender.getSent().size());
+		assertFalse(new File(folder.getRoot(), "outbox.dead").exists());
+	}
+}